@@ -17,11 +17,11 @@ package com.helpezee.mail.bean;
  * If not, see <http://www.gnu.org/licenses/>.
  */
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
@@ -70,8 +70,23 @@ public class BodypartBean implements Serializable {
 
 	protected byte[] value = null;
 
+	// true if the value was cut short to stay within a size limit
+	protected boolean truncated = false;
+
+	// holds the value instead of "value" when it was spilled to disk
+	protected transient PartStorage storage = null;
+
+	// reads the value on first access, set by the lazy parse mode
+	protected transient ValueLoader valueLoader = null;
+
 	protected String contentType = DEFAULT_CONTENT_TYPE;
 
+	// the part this one was put() to, restored by readObject()
+	protected transient BodypartBean parent = null;
+
+	// built from "headers" on first lookup
+	protected transient HeaderIndex headerIndex = null;
+
 	protected final static String LF = System.getProperty("line.separator", "\n");
 
 	/**
@@ -115,6 +130,33 @@ public class BodypartBean implements Serializable {
 	 */
 	public void put(BodypartBean subNode) {
 		attachParts.add(subNode);
+		subNode.parent = this;
+		changed();
+	}
+
+	/**
+	 * @return the part this one was added to, null for the root
+	 */
+	public BodypartBean getParent() {
+		return parent;
+	}
+
+	/**
+	 * tell this part and the parts above it that the tree has changed. Called
+	 * by the setters, call it after changing the lists returned by getNodes()
+	 * or getHeaders() directly.
+	 */
+	public void changed() {
+		headerIndex = null;
+		for (BodypartBean node = this; node != null; node = node.parent) {
+			node.invalidate();
+		}
+	}
+
+	/**
+	 * drop values computed from the tree, see MessageBean.getBody().
+	 */
+	protected void invalidate() {
 	}
 
 	/**
@@ -392,12 +434,117 @@ public class BodypartBean implements Serializable {
 	}
 
 	/**
-	 * @return value as a byte array
+	 * @return value as a byte array. In lazy parse mode the value is read
+	 *         from the source part on the first call. A value that was
+	 *         spilled to disk is read back on every call, use
+	 *         getValueStream() for those.
 	 */
 	public byte[] getValue() {
+		loadValue();
+		if (storage != null) {
+			try {
+				return storage.getBytes();
+			} catch (IOException e) {
+				logger.error("IOException caught while reading the value of " + getContentType(), e);
+				return null;
+			}
+		}
 		return this.value;
 	}
 
+	/**
+	 * @return the value as a stream, or null if there is no value
+	 * @throws IOException
+	 */
+	public InputStream getValueStream() throws IOException {
+		loadValue();
+		if (storage != null) {
+			return storage.getInputStream();
+		}
+		return value == null ? null : new ByteArrayInputStream(value);
+	}
+
+	/**
+	 * @return size of the value in bytes, without reading a spilled value
+	 */
+	public int getValueSize() {
+		loadValue();
+		if (storage != null) {
+			return storage.getSize();
+		}
+		return value == null ? 0 : value.length;
+	}
+
+	/**
+	 * @return true if the part has a value
+	 */
+	public boolean hasValue() {
+		loadValue();
+		return value != null || storage != null;
+	}
+
+	/**
+	 * @return the storage of a value that was spilled to disk, null if the
+	 *         value is on the heap
+	 */
+	public PartStorage getStorage() {
+		loadValue();
+		return storage;
+	}
+
+	/**
+	 * delete the temporary files of this part and its child parts. A spilled
+	 * value can't be read after it has been released.
+	 */
+	public void release() {
+		releaseStorage();
+		for (BodypartBean subNode : attachParts) {
+			subNode.release();
+		}
+		changed();
+	}
+
+	private void loadValue() {
+		if (valueLoader != null) {
+			ValueLoader loader = valueLoader;
+			valueLoader = null;
+			try {
+				loader.load(this);
+			} catch (Exception e) {
+				logger.error("Exception caught while loading the value of " + getContentType(), e);
+				setValue("-- Message body has been omitted. Exception thrown while loading the part --");
+			}
+		}
+	}
+
+	private void releaseStorage() {
+		if (storage != null) {
+			storage.release();
+			storage = null;
+		}
+	}
+
+	/**
+	 * @return true if the value has been read into memory, false if it will
+	 *         be read on the first getValue() call
+	 */
+	public boolean isValueLoaded() {
+		return valueLoader == null;
+	}
+
+	/**
+	 * defer reading the value until getValue() is called.
+	 * 
+	 * @param valueLoader
+	 *            - reads the value
+	 */
+	public void setValueLoader(ValueLoader valueLoader) {
+		releaseStorage();
+		this.value = null;
+		this.valueLoader = valueLoader;
+		changed();
+	}
+
 	/**
 	 * @return headers of the body part
 	 */
@@ -405,6 +552,26 @@ public class BodypartBean implements Serializable {
 		return this.headers;
 	}
 
+	/**
+	 * @param name
+	 *            - header name, in any case
+	 * @return all values of the header, or null if the part doesn't have it
+	 */
+	public String[] getHeader(String name) {
+		return getHeaderIndex().get(name);
+	}
+
+	/**
+	 * @return a case-insensitive index of the headers of this part
+	 */
+	public HeaderIndex getHeaderIndex() {
+		HeaderIndex index = headerIndex;
+		if (index == null) {
+			index = headerIndex = new HeaderIndex(headers);
+		}
+		return index;
+	}
+
 	/**
 	 * @return size of the body part
 	 */
@@ -420,6 +587,7 @@ public class BodypartBean implements Serializable {
 	 */
 	public void setContentType(String contentType) {
 		this.contentType = contentType;
+		changed();
 	}
 
 	/**
@@ -429,6 +597,8 @@ public class BodypartBean implements Serializable {
 	 *            - node value
 	 */
 	public final void setValue(Object value) {
+		valueLoader = null;
+		releaseStorage();
 		if (value instanceof String)
 			setValue((String) value);
 		else if (value instanceof InputStream)
@@ -439,6 +609,7 @@ public class BodypartBean implements Serializable {
 			this.value = null;
 		else
 			throw new IllegalArgumentException("The input was not a type as expected");
+		changed();
 	}
 
 	/**
@@ -448,6 +619,7 @@ public class BodypartBean implements Serializable {
 	 */
 	public void setDisposition(String disposition) {
 		this.disposition = disposition;
+		changed();
 	}
 
 	/**
@@ -470,12 +642,15 @@ public class BodypartBean implements Serializable {
 	 *            - part value
 	 */
 	protected final void setValue(String value) {
+		valueLoader = null;
+		releaseStorage();
 		try {
 			this.value = value.getBytes("iso-8859-1"); // mail-safe
 		} catch (UnsupportedEncodingException uex) {
 			// fall back
 			this.value = value.getBytes();
 		}
+		changed();
 	}
 
 	/**
@@ -486,22 +661,74 @@ public class BodypartBean implements Serializable {
 	 *            - an InputStream
 	 */
 	protected final void setValue(InputStream value) {
-		// if the stream is not buffered, wrap it with a BufferedInputStream
-		if (!(value instanceof BufferedInputStream)) {
-			value = new BufferedInputStream(value);
-		}
-		DataInputStream dis = new DataInputStream(value);
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		byte[] buf = new byte[512];
-		int len;
+		setValue(value, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Set value from an input stream, reading no more than maxSize bytes. The
+	 * part is marked as truncated if the stream holds more than that.
+	 * 
+	 * @param value
+	 *            - an InputStream
+	 * @param maxSize
+	 *            - maximum number of bytes to read
+	 * @return true if the whole stream was read
+	 */
+	protected final boolean setValue(InputStream value, int maxSize) {
+		return setValue(value, maxSize, 0);
+	}
+
+	/**
+	 * Set value from an input stream, reading no more than maxSize bytes.
+	 * Values larger than spillThreshold are written to a temporary file, see
+	 * PartStorage.
+	 * 
+	 * @param value
+	 *            - an InputStream
+	 * @param maxSize
+	 *            - maximum number of bytes to read
+	 * @param spillThreshold
+	 *            - largest value kept on the heap, 0 for no limit
+	 * @return true if the whole stream was read
+	 */
+	protected final boolean setValue(InputStream value, int maxSize, int spillThreshold) {
+		valueLoader = null;
+		releaseStorage();
+		PartStorage newStorage;
 		try {
-			while ((len = dis.read(buf)) > 0) {
-				baos.write(buf, 0, len);
-			}
+			newStorage = PartStorage.read(value, maxSize, spillThreshold);
 		} catch (IOException e) {
-			// logger.error("IOExcetion caught", e);
+			logger.error("IOException caught while spilling " + getContentType() + " to disk", e);
+			setValue("-- Message body has been omitted. Failed to write it to disk --");
+			return false;
 		}
-		this.value = baos.toByteArray();
+		if (newStorage.isFileBacked()) {
+			this.value = null;
+			this.storage = newStorage;
+		} else {
+			try {
+				this.value = newStorage.getBytes();
+			} catch (IOException e) {
+				// heap storage doesn't throw
+			}
+		}
+		if (newStorage.isTruncated()) {
+			truncated = true;
+		}
+		changed();
+		return !newStorage.isTruncated();
+	}
+
+	/**
+	 * @return true if the value was cut short because it exceeded a size
+	 *         limit. For a MessageBean, true if any part of the message was.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	public void setTruncated(boolean truncated) {
+		this.truncated = truncated;
 	}
 
 	/**
@@ -513,6 +740,7 @@ public class BodypartBean implements Serializable {
 	public void setHeaders(List<MsgHeader> headers) {
 		this.headers.clear();
 		this.headers.addAll(headers);
+		changed();
 	}
 
 	/**
@@ -524,8 +752,10 @@ public class BodypartBean implements Serializable {
 	 */
 	public void setHeaders(Part part) throws MessagingException {
 		this.headers.clear();
-		if (part == null)
+		if (part == null) {
+			changed();
 			return;
+		}
 		Enumeration<?> enu = part.getAllHeaders();
 		while (enu.hasMoreElements()) {
 			Header jmHdr = (Header) enu.nextElement();
@@ -534,6 +764,7 @@ public class BodypartBean implements Serializable {
 			header.setValue(jmHdr.getValue());
 			this.headers.add(header);
 		}
+		changed();
 	}
 
 	/**
@@ -554,9 +785,13 @@ public class BodypartBean implements Serializable {
 		fileName = null;
 		contentType = DEFAULT_CONTENT_TYPE;
 		value = null;
+		valueLoader = null;
+		releaseStorage();
+		truncated = false;
 		headers.clear();
 		size = 0;
 		attachParts.clear();
+		changed();
 	}
 
 	/**
@@ -585,9 +820,9 @@ public class BodypartBean implements Serializable {
 				sb.append("Header Line - " + hdr.getName() + ": " + hdr.getValue() + LF);
 			}
 		}
-		if (value != null) {
+		if (value != null || storage != null || valueLoader != null) {
 			if (getMimeType().indexOf("text") >= 0 || getMimeType().indexOf("message") >= 0)
-				sb.append(new String(value) + LF);
+				sb.append(new String(getValue()) + LF);
 			else
 				sb.append("Data contains nonprintable content." + LF);
 		}
@@ -599,4 +834,45 @@ public class BodypartBean implements Serializable {
 		sb.append("<- Level(" + level + ")****** END BodypartBean ******" + LF);
 		return sb.toString();
 	}
-}
\ No newline at end of file
+
+	/*
+	 * read a deferred value before the bean is serialized, the loader itself
+	 * can't be. A spilled value is written as "value" and stays on disk, the
+	 * field is set back once the bean has been written.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		if (getStorage() == null) {
+			out.defaultWriteObject();
+			return;
+		}
+		byte[] heapValue = value;
+		value = storage.getBytes();
+		try {
+			out.defaultWriteObject();
+		} finally {
+			value = heapValue;
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		for (BodypartBean subNode : attachParts) {
+			subNode.parent = this;
+		}
+	}
+
+	/**
+	 * Reads the value of a body part on demand.
+	 */
+	public interface ValueLoader {
+		/**
+		 * read the value and set it to the node
+		 * 
+		 * @param node
+		 *            - the body part being read
+		 * @throws IOException
+		 * @throws MessagingException
+		 */
+		void load(BodypartBean node) throws IOException, MessagingException;
+	}
+}
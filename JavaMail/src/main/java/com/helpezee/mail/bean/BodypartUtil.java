@@ -69,8 +69,7 @@ public final class BodypartUtil implements Serializable {
 			String disp = subNode.getDisposition();
 			String desc = subNode.getDescription();
 			String mtype = subNode.getMimeType();
-			String nullInd = subNode.getValue() == null ? "null" : "not null";
-			//logger.info("retrieveAttachments(): level=" + level + ", mtype=" + mtype + ", " + ", disp=" + disp	+ ", desc=" + desc + ", " + nullInd);
+			//logger.info("retrieveAttachments(): level=" + level + ", mtype=" + mtype + ", " + ", disp=" + disp	+ ", desc=" + desc);
 			if (Part.ATTACHMENT.equalsIgnoreCase(disp) || (Part.INLINE.equalsIgnoreCase(disp) && desc != null)
 					|| MessageBeanUtil.getFileName(subNode.getContentType()) != null) {
 
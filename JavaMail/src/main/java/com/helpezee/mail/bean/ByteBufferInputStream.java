@@ -0,0 +1,116 @@
+package com.helpezee.mail.bean;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * A SharedInputStream over a ByteBuffer, typically a memory mapped file.
+ * <p>
+ * MimeMessage and MimeMultipart keep a SharedInputStream instead of copying
+ * the content of each part: newStream() returns a view of the same buffer,
+ * so a part is only read when its content is asked for, and straight from
+ * the mapped region.
+ *
+ * @author JackW
+ */
+public class ByteBufferInputStream extends InputStream implements SharedInputStream {
+
+	private final ByteBuffer buf; // position 0 is offset 0 of this stream
+	private int mark = 0;
+
+	/**
+	 * @param buffer
+	 *            - the stream reads the bytes between the position and the
+	 *            limit of the buffer, the buffer itself is not changed
+	 */
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buf = buffer.slice();
+	}
+
+	public int read() {
+		return buf.hasRemaining() ? buf.get() & 0xff : -1;
+	}
+
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buf.hasRemaining()) {
+			return -1;
+		}
+		len = Math.min(len, buf.remaining());
+		buf.get(b, off, len);
+		return len;
+	}
+
+	public long skip(long n) {
+		if (n <= 0) {
+			return 0;
+		}
+		int skipped = (int) Math.min(n, buf.remaining());
+		buf.position(buf.position() + skipped);
+		return skipped;
+	}
+
+	public int available() {
+		return buf.remaining();
+	}
+
+	public boolean markSupported() {
+		return true;
+	}
+
+	public void mark(int readlimit) {
+		mark = buf.position();
+	}
+
+	public void reset() {
+		buf.position(mark);
+	}
+
+	/**
+	 * @return the current position in this stream
+	 */
+	public long getPosition() {
+		return buf.position();
+	}
+
+	/**
+	 * same as SharedByteArrayInputStream.newStream()
+	 *
+	 * @param start
+	 *            - start offset in this stream
+	 * @param end
+	 *            - end offset, -1 for the end of this stream
+	 * @return a stream over the same bytes, nothing is copied
+	 */
+	public InputStream newStream(long start, long end) {
+		if (start < 0) {
+			throw new IllegalArgumentException("start < 0");
+		}
+		if (end == -1) {
+			end = buf.limit();
+		}
+		ByteBuffer dup = buf.duplicate();
+		dup.limit((int) end);
+		dup.position((int) start);
+		return new ByteBufferInputStream(dup);
+	}
+}
@@ -0,0 +1,86 @@
+package com.helpezee.mail.bean;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Case-insensitive lookup of the headers of a body part, built in one pass
+ * over its header list. A header that occurs more than once keeps all its
+ * values, in the order they appear in the part.
+ *
+ * @author JackW
+ */
+public final class HeaderIndex {
+
+	private final Map<String, List<String>> index;
+
+	/**
+	 * @param headers
+	 *            - headers of a body part
+	 */
+	public HeaderIndex(List<MsgHeader> headers) {
+		index = new HashMap<String, List<String>>(headers.size() * 2);
+		for (int i = 0; i < headers.size(); i++) {
+			MsgHeader header = headers.get(i);
+			if (header.getName() == null) {
+				continue;
+			}
+			String key = header.getName().toLowerCase(Locale.ENGLISH);
+			List<String> values = index.get(key);
+			if (values == null) {
+				values = new ArrayList<String>(1);
+				index.put(key, values);
+			}
+			values.add(header.getValue());
+		}
+	}
+
+	/**
+	 * @param name
+	 *            - header name, in any case
+	 * @return all values of the header, or null if the part doesn't have it.
+	 *         Same as Part.getHeader().
+	 */
+	public String[] get(String name) {
+		List<String> values = index.get(name.toLowerCase(Locale.ENGLISH));
+		return values == null ? null : values.toArray(new String[values.size()]);
+	}
+
+	/**
+	 * @param name
+	 *            - header name, in any case
+	 * @return the first value of the header, or null if the part doesn't have
+	 *         it
+	 */
+	public String getFirst(String name) {
+		List<String> values = index.get(name.toLowerCase(Locale.ENGLISH));
+		return values == null ? null : values.get(0);
+	}
+
+	/**
+	 * @param name
+	 *            - header name, in any case
+	 * @return true if the part has the header
+	 */
+	public boolean contains(String name) {
+		return index.containsKey(name.toLowerCase(Locale.ENGLISH));
+	}
+}
@@ -0,0 +1,404 @@
+package com.helpezee.mail.bean;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.mail.Header;
+import javax.mail.MessageRemovedException;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParameterList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.BODYSTRUCTURE;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
+/**
+ * Build a MessageBean for an IMAP multipart/report message by fetching only
+ * the sections BounceFinder looks at.
+ * <p>
+ * The BODYSTRUCTURE of the message is read first. Then a single FETCH
+ * command reads, with BODY.PEEK so the message stays unseen:
+ * <ul>
+ * <li>message/delivery-status, message/disposition-notification and
+ * text/rfc822-headers sections, in full up to the component size limit
+ * <li>the header of a returned message/rfc822
+ * <li>the first TEXT_FETCH_SIZE bytes of the text parts of the report and of
+ * the first text part of the returned message
+ * </ul>
+ * Everything else, like the attachments of a returned message, is added to
+ * the tree with its type and size but is never downloaded. The tree has the
+ * same shape as the one MessageBeanUtil.mimeToBean() builds, so
+ * BodypartUtil.retrieveDlvrStatus() and retrieveRfc822Headers() work on it
+ * unchanged. The MIME headers of a part are made up from its BODYSTRUCTURE
+ * instead of being fetched.
+ *
+ * @author JackW
+ */
+public final class ImapReportFetcher {
+
+	public static Logger logger = LoggerFactory.getLogger(ImapReportFetcher.class);
+
+	/** bytes read from a text part, a delivery failure is near the top */
+	public static final int TEXT_FETCH_SIZE = 16 * 1024;
+
+	private ImapReportFetcher() {
+	}
+
+	/**
+	 * @param p
+	 *            - part
+	 * @return true if the part is a multipart/report message of an IMAP folder
+	 * @throws MessagingException
+	 */
+	public static boolean isApplicable(Part p) throws MessagingException {
+		// the content type comes from the prefetched BODYSTRUCTURE
+		return p instanceof IMAPMessage && p.isMimeType("multipart/report");
+	}
+
+	/**
+	 * convert an IMAP multipart/report message to a message bean, reading
+	 * only the report sections. The folder of the message must be open.
+	 *
+	 * @param msg
+	 *            - IMAP message
+	 * @param options
+	 *            - parse options, the component and total size limits cap
+	 *            every section read
+	 * @return a message bean
+	 * @throws MessagingException
+	 *             if the sections could not be fetched
+	 */
+	public static MessageBean reportToBean(IMAPMessage msg, MimeParseOptions options) throws MessagingException {
+		if (msg.isExpunged()) {
+			throw new MessageRemovedException("Message " + msg.getMessageNumber() + " has been expunged");
+		}
+		MessageBean msgBean = new MessageBean();
+		msgBean.clearParameters();
+
+		MessageBeanUtil.processEnvelope(msg, msgBean);
+		msgBean.setSize(msg.getSize());
+
+		final int msgno = msg.getMessageNumber();
+		final int limit = getLimit(options);
+		final List<Section> sections = new ArrayList<Section>();
+		IMAPFolder folder = (IMAPFolder) msg.getFolder();
+		Object result = folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+				BODYSTRUCTURE bs = protocol.fetchBodyStructure(msgno);
+				if (bs == null) {
+					throw new ProtocolException("No BODYSTRUCTURE returned for message " + msgno);
+				}
+				buildTree(msgBean, bs, "", false, sections, msgBean, limit);
+				return fetchSections(protocol, msgno, sections);
+			}
+		});
+		@SuppressWarnings("unchecked")
+		Map<String, BODY> bodies = (Map<String, BODY>) result;
+		for (Section section : sections) {
+			BODY body = bodies.get(section.getKey());
+			if (body == null) {
+				logger.warn("reportToBean() - section " + section.name + " of message " + msgno + " not returned");
+				continue;
+			}
+			section.setValue(body, msgBean);
+		}
+		return msgBean;
+	}
+
+	private static int getLimit(MimeParseOptions options) {
+		int limit = Integer.MAX_VALUE;
+		if (options.getMaxComponentSize() > 0) {
+			limit = options.getMaxComponentSize();
+		}
+		if (options.getMaxTotalSize() > 0) {
+			limit = Math.min(limit, options.getMaxTotalSize());
+		}
+		return limit;
+	}
+
+	/*
+	 * add the body parts of a BODYSTRUCTURE to the tree, and queue the
+	 * sections to read.
+	 *
+	 * @param aNode - node of the structure
+	 *
+	 * @param bs - structure
+	 *
+	 * @param prefix - section of the structure, "" for the message
+	 *
+	 * @param original - true inside a returned message
+	 */
+	private static void buildTree(BodypartBean aNode, BODYSTRUCTURE bs, String prefix, boolean original,
+			List<Section> sections, MessageBean msgBean, int limit) {
+		String contentType = getContentType(bs);
+		aNode.setContentType(contentType);
+		aNode.setSize(bs.size);
+		if (aNode != msgBean) {
+			setPartInfo(aNode, bs, contentType, msgBean);
+		}
+		String mtype = contentType.toLowerCase(Locale.ENGLISH);
+		if (bs.isMulti()) {
+			for (int i = 0; bs.bodies != null && i < bs.bodies.length; i++) {
+				BodypartBean subNode = new BodypartBean();
+				buildTree(subNode, bs.bodies[i], child(prefix, i + 1), original, sections, msgBean, limit);
+				aNode.put(subNode);
+			}
+			return;
+		}
+		msgBean.getComponentsSize().add(Integer.valueOf(bs.size));
+		if (bs.isNested()) {
+			// message/rfc822: its header, and the start of its first text
+			BodypartBean subNode = new BodypartBean();
+			sections.add(new Section(subNode, prefix + ".HEADER", null, null, 0, false));
+			BODYSTRUCTURE nested = bs.bodies == null || bs.bodies.length == 0 ? null : bs.bodies[0];
+			if (nested != null) {
+				subNode.setContentType(getContentType(nested));
+				subNode.setSize(nested.size);
+				if (nested.isMulti()) {
+					for (int i = 0; nested.bodies != null && i < nested.bodies.length; i++) {
+						BodypartBean partNode = new BodypartBean();
+						buildTree(partNode, nested.bodies[i], child(prefix, i + 1), true, sections, msgBean, limit);
+						subNode.put(partNode);
+					}
+				} else if (subNode.getMimeType().startsWith("text") && !hasText(sections, true)) {
+					sections.add(new Section(subNode, prefix + ".TEXT", nested, "text", Math.min(TEXT_FETCH_SIZE,
+							limit), true));
+				}
+			}
+			aNode.put(subNode);
+		} else if (!original
+				&& (mtype.startsWith("message/delivery-status") || mtype.startsWith("message/disposition-notification")
+						|| mtype.startsWith("text/rfc822-headers"))) {
+			sections.add(new Section(aNode, prefix, bs, null, limit, false));
+		} else if ((mtype.startsWith("text/plain") || mtype.startsWith("text/html"))
+				&& !Part.ATTACHMENT.equalsIgnoreCase(bs.disposition) && (!original || !hasText(sections, true))) {
+			sections.add(new Section(aNode, prefix, bs, "text", Math.min(TEXT_FETCH_SIZE, limit), original));
+		}
+	}
+
+	private static String child(String prefix, int i) {
+		return prefix.length() == 0 ? String.valueOf(i) : prefix + "." + i;
+	}
+
+	private static boolean hasText(List<Section> sections, boolean original) {
+		for (Section section : sections) {
+			if (section.original == original && section.charsetType != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String getContentType(BODYSTRUCTURE bs) {
+		try {
+			return new ContentType(bs.type, bs.subtype, bs.cParams).toString();
+		} catch (RuntimeException e) {
+			return bs.type + "/" + bs.subtype;
+		}
+	}
+
+	/*
+	 * the part fields processAttachment() sets from the MIME headers
+	 */
+	private static void setPartInfo(BodypartBean aNode, BODYSTRUCTURE bs, String contentType, MessageBean msgBean) {
+		String desc = bs.description;
+		if (desc != null) {
+			try {
+				desc = MimeUtility.decodeText(desc);
+			} catch (UnsupportedEncodingException e) {
+				// keep it encoded
+			}
+		} else {
+			desc = MessageBeanUtil.getFileName(contentType);
+		}
+		String fileName = getParameter(bs.dParams, "filename");
+		if (fileName == null) {
+			fileName = getParameter(bs.cParams, "name");
+		}
+		aNode.setDisposition(bs.disposition);
+		aNode.setDescription(desc);
+		aNode.setFileName(fileName);
+		if (Part.ATTACHMENT.equalsIgnoreCase(bs.disposition)
+				|| (Part.INLINE.equalsIgnoreCase(bs.disposition) && desc != null)
+				|| MessageBeanUtil.getFileName(contentType) != null) {
+			msgBean.updateAttachCount(1);
+		}
+		List<MsgHeader> headers = new ArrayList<MsgHeader>();
+		headers.add(newHeader("Content-Type", contentType));
+		if (bs.encoding != null) {
+			headers.add(newHeader("Content-Transfer-Encoding", bs.encoding));
+		}
+		if (bs.disposition != null) {
+			String disp = bs.disposition;
+			if (bs.dParams != null && bs.dParams.size() > 0) {
+				disp += bs.dParams.toString();
+			}
+			headers.add(newHeader("Content-Disposition", disp));
+		}
+		if (bs.description != null) {
+			headers.add(newHeader("Content-Description", bs.description));
+		}
+		aNode.setHeaders(headers);
+	}
+
+	private static String getParameter(ParameterList params, String name) {
+		return params == null ? null : params.get(name);
+	}
+
+	private static MsgHeader newHeader(String name, String value) {
+		MsgHeader header = new MsgHeader();
+		header.setName(name);
+		header.setValue(value);
+		return header;
+	}
+
+	/*
+	 * read all queued sections with one FETCH command
+	 */
+	private static Map<String, BODY> fetchSections(IMAPProtocol protocol, int msgno, List<Section> sections)
+			throws ProtocolException {
+		Map<String, BODY> bodies = new HashMap<String, BODY>();
+		if (sections.isEmpty()) {
+			return bodies;
+		}
+		StringBuilder items = new StringBuilder();
+		for (Section section : sections) {
+			if (items.length() > 0) {
+				items.append(' ');
+			}
+			items.append("BODY.PEEK[").append(section.name).append(']');
+			if (section.size > 0) {
+				items.append("<0.").append(section.size).append('>');
+			}
+		}
+		Response[] r = protocol.fetch(msgno, items.toString());
+		protocol.notifyResponseHandlers(r);
+		protocol.handleResult(r[r.length - 1]);
+		for (BODY body : FetchResponse.getItems(r, msgno, BODY.class)) {
+			if (body.getSection() != null) {
+				bodies.put(body.getSection().toUpperCase(Locale.ENGLISH), body);
+			}
+		}
+		return bodies;
+	}
+
+	/*
+	 * a section to read, and the node that gets its content
+	 */
+	private static final class Section {
+		final BodypartBean node;
+		final String name;
+		final BODYSTRUCTURE bs; // null for a message header
+		final String charsetType; // "text" to decode with the charset
+		final int size; // number of bytes to read, 0 for all of it
+		final boolean original;
+
+		Section(BodypartBean node, String name, BODYSTRUCTURE bs, String charsetType, int size, boolean original) {
+			this.node = node;
+			this.name = name;
+			this.bs = bs;
+			this.charsetType = charsetType;
+			this.size = size == Integer.MAX_VALUE ? 0 : size;
+			this.original = original;
+		}
+
+		String getKey() {
+			return name.toUpperCase(Locale.ENGLISH);
+		}
+
+		void setValue(BODY body, MessageBean msgBean) throws MessagingException {
+			if (bs == null) {
+				// header of a returned message
+				InternetHeaders ih = new InternetHeaders(body.getByteArrayInputStream());
+				List<MsgHeader> headers = new ArrayList<MsgHeader>();
+				for (Enumeration<?> enu = ih.getAllHeaders(); enu.hasMoreElements();) {
+					Header hdr = (Header) enu.nextElement();
+					headers.add(newHeader(hdr.getName(), hdr.getValue()));
+				}
+				node.setHeaders(headers);
+				return;
+			}
+			byte[] bytes = decode(body.getByteArrayInputStream(), bs.encoding);
+			if (size > 0 && bs.size > size) {
+				node.setTruncated(true);
+				if (charsetType == null) {
+					// a report section cut short by the size limit
+					logger.warn("setValue() - " + node.getContentType() + " truncated at " + size + " bytes");
+					msgBean.setTruncated(true);
+				}
+			}
+			if (charsetType != null) {
+				String charset = getParameter(bs.cParams, "charset");
+				String text;
+				try {
+					text = new String(bytes, MimeUtility.javaCharset(charset == null ? "us-ascii" : charset));
+				} catch (UnsupportedEncodingException e) {
+					text = new String(bytes);
+				}
+				node.setValue(text);
+			} else {
+				node.setValue(bytes);
+			}
+		}
+	}
+
+	/*
+	 * undo the content transfer encoding. A partial section may end in the
+	 * middle of an encoded unit, what was decoded so far is kept.
+	 */
+	private static byte[] decode(InputStream is, String encoding) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		if (encoding != null) {
+			try {
+				is = MimeUtility.decode(is, encoding);
+			} catch (MessagingException e) {
+				logger.error("decode() - unknown encoding " + encoding + ", using raw data", e);
+			}
+		}
+		try {
+			byte[] buf = new byte[4096];
+			int len;
+			while ((len = is.read(buf)) > 0) {
+				baos.write(buf, 0, len);
+			}
+		} catch (IOException e) {
+			logger.warn("decode() - IOException caught, keeping " + baos.size() + " bytes", e);
+		}
+		return baos.toByteArray();
+	}
+}
@@ -0,0 +1,109 @@
+package com.helpezee.mail.bean;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Properties;
+
+import javax.mail.Session;
+
+/**
+ * The JavaMail sessions used to parse and build messages outside of a mail
+ * store.
+ * <p>
+ * The properties are copied once, when the context is created, and the
+ * sessions are never changed afterwards, so one context can be shared by all
+ * threads. Debug output is off unless a caller asks for the debug session,
+ * which is a separate session with "mail.debug" set. Unlike
+ * Session.setDebug() on the default session, that doesn't affect anybody
+ * else.
+ *
+ * @author JackW
+ */
+public final class MailSessionContext {
+
+	private final Properties props;
+	private final Session session;
+	private volatile Session debugSession = null;
+
+	/*
+	 * the system properties, copied by the first thread that needs them.
+	 */
+	private static final class Default {
+		static final MailSessionContext CONTEXT = new MailSessionContext(System.getProperties());
+	}
+
+	/**
+	 * @param props
+	 *            - session properties, copied. "mail.debug" is ignored, use
+	 *            getSession(true) for debug output.
+	 */
+	public MailSessionContext(Properties props) {
+		this.props = new Properties();
+		this.props.putAll(props);
+		this.props.setProperty("mail.debug", "false");
+		session = Session.getInstance(this.props);
+	}
+
+	/**
+	 * @return the context built from the system properties at the time of
+	 *         the first call
+	 */
+	public static MailSessionContext getDefault() {
+		return Default.CONTEXT;
+	}
+
+	/**
+	 * @return the session, debug output off
+	 */
+	public Session getSession() {
+		return session;
+	}
+
+	/**
+	 * @param debug
+	 *            - true to trace what JavaMail does with the messages of
+	 *            this call
+	 * @return the session, or the debug session
+	 */
+	public Session getSession(boolean debug) {
+		return debug ? getDebugSession() : session;
+	}
+
+	private Session getDebugSession() {
+		Session s = debugSession;
+		if (s == null) {
+			synchronized (this) {
+				s = debugSession;
+				if (s == null) {
+					Properties debugProps = new Properties();
+					debugProps.putAll(props);
+					debugProps.setProperty("mail.debug", "true");
+					s = debugSession = Session.getInstance(debugProps);
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * @return a copy of the session properties
+	 */
+	public Properties getProperties() {
+		Properties copy = new Properties();
+		copy.putAll(props);
+		return copy;
+	}
+}
@@ -83,6 +83,9 @@ public final class MessageBean extends BodypartBean implements java.io.Serializa
 
 	private boolean messageProcessed = false;
 
+	// computed from the part tree, dropped by invalidate()
+	private transient String body = null, bodyContentType = null;
+
 	/**
 	 * default constructor
 	 */
@@ -239,24 +242,40 @@ public final class MessageBean extends BodypartBean implements java.io.Serializa
 	 * @return content type of the body
 	 */
 	public String getBodyContentType() {
-		String type = getBodyContentType(0);
-		if (type == null || type.trim().length() == 0) {
-			type = DEFAULT_CONTENT_TYPE;
+		String type = bodyContentType;
+		if (type == null) {
+			type = getBodyContentType(0);
+			if (type == null || type.trim().length() == 0) {
+				type = DEFAULT_CONTENT_TYPE;
+			}
+			bodyContentType = type;
 		}
 		return type;
 	}
 
 	/**
-	 * get email message body.
+	 * get email message body. The body is built from the part tree on the
+	 * first call and kept until a part of the tree is changed.
 	 * 
 	 * @return the email body
 	 */
 	public String getBody() {
-		String msgBody = getBody(0);
-
+		String msgBody = body;
+		if (msgBody == null) {
+			msgBody = getBody(0);
+			body = msgBody;
+		}
 		return msgBody;
 	}
 
+	/*
+	 * a part of the tree has changed
+	 */
+	protected void invalidate() {
+		body = null;
+		bodyContentType = null;
+	}
+
 	/**
 	 * get a BodypartBean that holds message body data
 	 * 
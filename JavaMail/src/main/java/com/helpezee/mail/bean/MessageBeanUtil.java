@@ -17,19 +17,22 @@ package com.helpezee.mail.bean;
  * If not, see <http://www.gnu.org/licenses/>.
  */
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -37,13 +40,11 @@ import java.util.Set;
 import javax.activation.DataHandler;
 import javax.mail.Address;
 import javax.mail.BodyPart;
-import javax.mail.Header;
 import javax.mail.Message;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
-import javax.mail.Session;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MailDateFormat;
@@ -51,6 +52,7 @@ import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.util.ByteArrayDataSource;
+import javax.mail.util.SharedByteArrayInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,9 +63,6 @@ public final class MessageBeanUtil {
 
 	final static String LF = System.getProperty("line.separator", "\n");
 
-	static boolean debugSession = false;
-	private static String hostName = null;
-
 	public static final String RETURN_PATH = "Return-Path";
 	public static final String XHEADER_PRIORITY = "X-Priority";
 	public static final String XHEADER_MAILER = "X-Mailer";
@@ -81,6 +80,20 @@ public final class MessageBeanUtil {
 	 * @throws IOException
 	 */
 	public static MessageBean mimeToBean(Part p) throws IOException, MessagingException {
+		return mimeToBean(p, new MimeParseOptions());
+	}
+
+	/**
+	 * convert JavaMail MimeMessage to message bean
+	 * 
+	 * @param p
+	 *            - part
+	 * @param options
+	 *            - parse options, see MimeParseOptions
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public static MessageBean mimeToBean(Part p, MimeParseOptions options) throws IOException, MessagingException {
 		// make sure it's a message
 		if (!(p instanceof Message) && !(p instanceof MimeMessage)) {
 			// not a known message type
@@ -93,22 +106,54 @@ public final class MessageBeanUtil {
 			throw new MessagingException("Part was not a MimeMessage as expected");
 		}
 
-		if (hostName == null) {
-			try {
-				hostName = java.net.InetAddress.getLocalHost().getHostName();
-			} catch (UnknownHostException e) {
-				logger.warn("mimeToBean() - UnknownHostException caught, default to localhost", e);
-				hostName = "localhost";
-			}
+		MessageBean msgBean = new MessageBean();
+		msgBean.clearParameters();
+
+		processEnvelope((Message) p, msgBean);
+
+		ParseBudget budget = new ParseBudget(options);
+		int msgSize = -1;
+		try {
+			msgSize = p.getSize(); // RFC822.SIZE for IMAP, no body fetch
+		} catch (MessagingException e) {
+			logger.error("mimeToBean() - MessagingException caught during getSize()", e);
+		}
+		if (options.getMaxTotalSize() > 0 && msgSize > options.getMaxTotalSize()) {
+			// don't download any of it
+			logger.warn("mimeToBean() - message size " + msgSize + " exceeded limit, body not read");
+			msgBean.setContentType(p.getContentType());
+			msgBean.setSize(msgSize);
+			msgBean.setValue(MESSAGE_TRUNCATED);
+			msgBean.setTruncated(true);
+			msgBean.getComponentsSize().add(Integer.valueOf(msgSize));
+			return msgBean;
 		}
 
+		processAttachment((BodypartBean) msgBean, p, msgBean, 0, options, budget);
+
+		return msgBean;
+	}
+
+	/**
+	 * convert the envelope and headers of a message to a message bean. The
+	 * body is not read, the bean has no body parts and no value.
+	 * 
+	 * @param p
+	 *            - part
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public static MessageBean headersToBean(Part p) throws IOException, MessagingException {
+		if (!(p instanceof Message)) {
+			throw new MessagingException("Part was not a MimeMessage as expected");
+		}
 		MessageBean msgBean = new MessageBean();
 		msgBean.clearParameters();
 
 		processEnvelope((Message) p, msgBean);
 
-		processAttachment((BodypartBean) msgBean, p, msgBean, 0);
-
+		msgBean.setContentType(p.getContentType());
+		msgBean.setSize(p.getSize());
 		return msgBean;
 	}
 
@@ -123,7 +168,7 @@ public final class MessageBeanUtil {
 	 * 
 	 * @throws AddressException
 	 */
-	private static String processEnvelope(Message msg, MessageBean msgBean) throws AddressException {
+	static String processEnvelope(Message msg, MessageBean msgBean) throws AddressException {
 		Address[] from = null, received_to = null, envelope_to = null, cc = null, bcc = null, replyto = null;
 		String[] xmailer = null;
 		String subject = null;
@@ -140,27 +185,29 @@ public final class MessageBeanUtil {
 			logger.error("MessagingException caught during getReceivedDate()", e);
 		}
 
-		// retrieve Message-Id, Return-Path and Received Time from headers
+		// copy the headers once, the lookups below use the header index
 		try {
-			Enumeration<?> enu = ((MimeMessage) msg).getAllHeaders();
-			while (enu.hasMoreElements()) {
-				Header hdr = (Header) enu.nextElement();
-				String name = hdr.getName();
-				//logger.debug("processEnvelope() - header line: " + name + ": " + hdr.getValue());
-				if ("Message-ID".equalsIgnoreCase(name)) {
-					messageId = hdr.getValue();
-					//logger.info("processEnvelope() - >>>>>Message-ID retrieved: " + messageId);
-					msgBean.setSmtpMessageId(messageId);
-				}
-				if (RETURN_PATH.equalsIgnoreCase(name)) {
-					msgBean.setReturnPath(hdr.getValue());
-				}
-				if ("Date".equals(name) && receivedTime == null) {
-					receivedTime = getHeaderDate(hdr.getValue()); // SMTP Date
-				}
-			}
+			msgBean.setHeaders(msg);
 		} catch (Exception e) {
-			logger.error("Exception caught from getAllHeaderLines()", e);
+			logger.error("Exception caught from getAllHeaders()", e);
+		}
+		HeaderIndex headers = msgBean.getHeaderIndex();
+
+		// retrieve Message-Id, Return-Path and Received Time from headers
+		messageId = getLastHeader(headers, "Message-ID");
+		if (messageId != null) {
+			//logger.info("processEnvelope() - >>>>>Message-ID retrieved: " + messageId);
+			msgBean.setSmtpMessageId(messageId);
+		}
+		String returnPath = getLastHeader(headers, RETURN_PATH);
+		if (returnPath != null) {
+			msgBean.setReturnPath(returnPath);
+		}
+		if (receivedTime == null) {
+			String date = headers.getFirst("Date");
+			if (date != null) {
+				receivedTime = getHeaderDate(date); // SMTP Date
+			}
 		}
 
 		Calendar rightNow = Calendar.getInstance();
@@ -171,12 +218,7 @@ public final class MessageBeanUtil {
 		// display Received Date Time
 		//logger.info("processEnvelope() - Email Received Time: " (receivedTime != null ? receivedTime.toString() : "UNKNOWN") + ", SERVER-TIME: "+ rightNow.getTime().toString());
 
-		String[] received = null;
-		try {
-			received = ((MimeMessage) msg).getHeader("Received");
-		} catch (MessagingException e) {
-			logger.error("MessagingException caught from getHeader(Received)", e);
-		}
+		String[] received = headers.get("Received");
 
 		// retrieve TO address from "Received" Headers.
 		String real_to = "";
@@ -206,7 +248,7 @@ public final class MessageBeanUtil {
 					addrStr += "," + checkAddr(addr[j].toString());
 				}
 				from = InternetAddress.parse(addrStr);
-			} else if ((_froms = msg.getHeader(RETURN_PATH)) != null && _froms.length > 0) {
+			} else if ((_froms = headers.get(RETURN_PATH)) != null && _froms.length > 0) {
 				logger.warn("processEnvelope() - FROM is missing from envelope, use Return-Path.");
 				String addrStr = checkAddr(_froms[0]);
 				for (int j = 1; j < _froms.length; j++) {
@@ -251,7 +293,7 @@ public final class MessageBeanUtil {
 		// TO from "Delivered-To" header
 		Address[] delivered_to = null;
 		try {
-			String[] dlvrTo = msg.getHeader("Delivered-To");
+			String[] dlvrTo = headers.get("Delivered-To");
 			if (dlvrTo != null && dlvrTo.length > 0) {
 				String addrStr = checkAddr(dlvrTo[0]);
 				for (int j = 1; j < dlvrTo.length; j++) {
@@ -260,8 +302,8 @@ public final class MessageBeanUtil {
 				//logger.info("processEnvelope() - \"Delivered-To\" found from header: " + addrStr);
 				delivered_to = InternetAddress.parse(addrStr);
 			}
-		} catch (MessagingException e) {
-			logger.error("MessagingException caught from msg.getHeader(\"Delivered-To\")", e);
+		} catch (AddressException e) {
+			logger.error("AddressException caught from parsing \"Delivered-To\"", e);
 		}
 
 		// TO: Received (non-VERP) > Delivered-To > Received (VERP) > Envelope
@@ -354,24 +396,16 @@ public final class MessageBeanUtil {
 		//logger.debug("processEnvelope() - Email Subject: [" + subject + "]");
 
 		// X-MAILER
-		try {
-			String[] hdrs = msg.getHeader(XHEADER_MAILER);
-			if (hdrs != null) {
-				xmailer = hdrs;
-				msgBean.setXmailer(xmailer);
-			}
-		} catch (MessagingException e) {
-			logger.error("MessagingException caught during getHeader(X-Mailer)", e);
+		String[] hdrs = headers.get(XHEADER_MAILER);
+		if (hdrs != null) {
+			xmailer = hdrs;
+			msgBean.setXmailer(xmailer);
 		}
 
 		// X-Priority: 1 (High), 2 (Normal), 3 (Low)
-		try {
-			String[] priority = ((MimeMessage) msg).getHeader(XHEADER_PRIORITY);
-			if (priority != null) {
-				msgBean.setPriority(priority);
-			}
-		} catch (MessagingException e) {
-			logger.error("MessagingException caught during getHeader(X-Priority)", e);
+		String[] priority = headers.get(XHEADER_PRIORITY);
+		if (priority != null) {
+			msgBean.setPriority(priority);
 		}
 
 		return messageId;
@@ -389,7 +423,8 @@ public final class MessageBeanUtil {
 	 * 
 	 * @param level - attachment level
 	 */
-	private static void processAttachment(BodypartBean aNode, Part p, MessageBean msgBean, int level) {
+	private static void processAttachment(BodypartBean aNode, Part p, MessageBean msgBean, int level,
+			MimeParseOptions options, ParseBudget budget) {
 		String disp = null, desc = null, contentType = "text/plain";
 		String dispOrig = null, descOrig = null;
 		String fileName = null;
@@ -471,7 +506,10 @@ public final class MessageBeanUtil {
 			}
 			// set content type and header fields
 			aNode.setContentType(contentType);
-			aNode.setHeaders(p);
+			if (aNode != msgBean) {
+				// the message headers were copied by processEnvelope()
+				aNode.setHeaders(p);
+			}
 			aNode.setSize(partSize);
 			/*
 			 * Using isMimeType to determine the content type.
@@ -479,7 +517,13 @@ public final class MessageBeanUtil {
 			if (p.isMimeType("text/plain") || p.isMimeType("text/html")) {
 				// logger.info("processAttachment(): level " + level + ", text
 				// message: " + contentType);
-				aNode.setValue((String) p.getContent());
+				if (options.isLazy()) {
+					aNode.setValueLoader(new PartValueLoader(p, msgBean, budget));
+				} else if (budget.isExceededBy(partSize)) {
+					truncatePart(aNode, msgBean, partSize);
+				} else {
+					setBoundedValue(aNode, (String) p.getContent(), msgBean, budget);
+				}
 				msgBean.getComponentsSize().add(Integer.valueOf(aNode.getSize()));
 			} else if (p.isMimeType("multipart/*")) {
 				// System.out.println("processAttachment(): level " + level + ",
@@ -491,7 +535,7 @@ public final class MessageBeanUtil {
 					// call itself to build up a child attachment tree
 					if (p1 != null) {
 						BodypartBean subNode = new BodypartBean();
-						processAttachment(subNode, p1, msgBean, level + 1);
+						processAttachment(subNode, p1, msgBean, level + 1, options, budget);
 						aNode.put(subNode);
 					}
 				}
@@ -502,9 +546,22 @@ public final class MessageBeanUtil {
 				Part p1 = (Part) p.getContent();
 				if (p1 != null) {
 					BodypartBean subNode = new BodypartBean();
-					processAttachment(subNode, p1, msgBean, level + 1);
+					processAttachment(subNode, p1, msgBean, level + 1, options, budget);
 					aNode.put(subNode);
 				}
+			} else if (options.isLazy()) {
+				/*
+				 * other mime type, read it only if someone asks for it. Use
+				 * the size reported by the part for the size checks.
+				 */
+				aNode.setValueLoader(new PartValueLoader(p, msgBean, budget));
+				if (partSize >= 0) {
+					msgBean.getComponentsSize().add(Integer.valueOf(partSize));
+				}
+			} else if (budget.isExceededBy(partSize)) {
+				// too large, don't download it
+				truncatePart(aNode, msgBean, partSize);
+				msgBean.getComponentsSize().add(Integer.valueOf(partSize));
 			} else {
 				/*
 				 * other mime type. could be application, image, audio, video,
@@ -518,26 +575,26 @@ public final class MessageBeanUtil {
 					// text type of section
 					// logger.info("processAttachment(): level " + level + ",
 					// String Content " + contentType);
-					aNode.setValue((String) o);
-					if (aNode.getValue() != null) {
-						msgBean.getComponentsSize().add(Integer.valueOf(((byte[]) aNode.getValue()).length));
+					setBoundedValue(aNode, o, msgBean, budget);
+					if (aNode.hasValue()) {
+						msgBean.getComponentsSize().add(Integer.valueOf(aNode.getValueSize()));
 					}
 				} else if (o instanceof InputStream) {
 					// stream type of section
 					// logger.info("processAttachment(): level " + level + ",
 					// InputStream Content " + contentType);
 					InputStream is = (InputStream) o;
-					aNode.setValue((InputStream) is);
-					if (aNode.getValue() != null) {
-						msgBean.getComponentsSize().add(Integer.valueOf(((byte[]) aNode.getValue()).length));
+					setBoundedValue(aNode, is, msgBean, budget);
+					if (aNode.hasValue()) {
+						msgBean.getComponentsSize().add(Integer.valueOf(aNode.getValueSize()));
 					}
 				} else if (o != null) {
 					// unknown Java type, write it out as a string anyway.
 					// logger.error("processAttachment(): level " + level + ",
 					// Unknown type: " + o.toString());
-					aNode.setValue((String) o.toString());
-					if (aNode.getValue() != null) {
-						msgBean.getComponentsSize().add(Integer.valueOf(((byte[]) aNode.getValue()).length));
+					setBoundedValue(aNode, o.toString(), msgBean, budget);
+					if (aNode.hasValue()) {
+						msgBean.getComponentsSize().add(Integer.valueOf(aNode.getValueSize()));
 					}
 				} else {
 					// no content
@@ -555,9 +612,10 @@ public final class MessageBeanUtil {
 			aNode.setValue("001: IndexOutOfBoundsException caught during process.");
 			BodypartBean subNode = new BodypartBean("text/plain");
 			aNode.put(subNode);
-			setAnodeValue(subNode, p, "002: IndexOutOfBoundsException thrown from mp.getBodyPart(i).");
-			if (subNode.getValue() != null) {
-				msgBean.getComponentsSize().add(Integer.valueOf(((byte[]) subNode.getValue()).length));
+			setAnodeValue(subNode, p, "002: IndexOutOfBoundsException thrown from mp.getBodyPart(i).", msgBean,
+					budget);
+			if (subNode.hasValue()) {
+				msgBean.getComponentsSize().add(Integer.valueOf(subNode.getValueSize()));
 			}
 			subNode.setDisposition(aNode.getDisposition());
 			subNode.setDescription(aNode.getDescription());
@@ -573,16 +631,16 @@ public final class MessageBeanUtil {
 				aNode.setValue("003: MessagingException caught during process.");
 				BodypartBean subNode = new BodypartBean("text/plain");
 				aNode.put(subNode);
-				setAnodeValue(subNode, p);
-				if (subNode.getValue() != null) {
-					msgBean.getComponentsSize().add(Integer.valueOf(((byte[]) subNode.getValue()).length));
+				setAnodeValue(subNode, p, msgBean, budget);
+				if (subNode.hasValue()) {
+					msgBean.getComponentsSize().add(Integer.valueOf(subNode.getValueSize()));
 				}
 				subNode.setDisposition(aNode.getDisposition());
 				subNode.setDescription(aNode.getDescription());
 			} else {
-				setAnodeValue(aNode, p);
-				if (aNode.getValue() != null) {
-					msgBean.getComponentsSize().add(Integer.valueOf(((byte[]) aNode.getValue()).length));
+				setAnodeValue(aNode, p, msgBean, budget);
+				if (aNode.hasValue()) {
+					msgBean.getComponentsSize().add(Integer.valueOf(aNode.getValueSize()));
 				}
 			}
 		} catch (UnsupportedEncodingException e) {
@@ -594,16 +652,16 @@ public final class MessageBeanUtil {
 				aNode.setValue("004: UnsupportedEncodingException caught during process.");
 				BodypartBean subNode = new BodypartBean("text/plain");
 				aNode.put(subNode);
-				setAnodeValue(subNode, p);
-				if (subNode.getValue() != null) {
-					msgBean.getComponentsSize().add(Integer.valueOf(((byte[]) subNode.getValue()).length));
+				setAnodeValue(subNode, p, msgBean, budget);
+				if (subNode.hasValue()) {
+					msgBean.getComponentsSize().add(Integer.valueOf(subNode.getValueSize()));
 				}
 				subNode.setDisposition(aNode.getDisposition());
 				subNode.setDescription(aNode.getDescription());
 			} else {
-				setAnodeValue(aNode, p);
-				if (aNode.getValue() != null) {
-					msgBean.getComponentsSize().add(Integer.valueOf(((byte[]) aNode.getValue()).length));
+				setAnodeValue(aNode, p, msgBean, budget);
+				if (aNode.hasValue()) {
+					msgBean.getComponentsSize().add(Integer.valueOf(aNode.getValueSize()));
 				}
 			}
 		} catch (IOException e) {
@@ -633,34 +691,158 @@ public final class MessageBeanUtil {
 				aNode.setValue("006: Exception caught during process.");
 				BodypartBean subNode = new BodypartBean("text/plain");
 				aNode.put(subNode);
-				setAnodeValue(subNode, p, "Unchecked Exception caught: " + e.toString());
+				setAnodeValue(subNode, p, "Unchecked Exception caught: " + e.toString(), msgBean, budget);
 				subNode.setDisposition(aNode.getDisposition());
 				subNode.setDescription(aNode.getDescription());
 			} else {
-				setAnodeValue(aNode, p, "Unchecked Exception caught: " + e.toString());
+				setAnodeValue(aNode, p, "Unchecked Exception caught: " + e.toString(), msgBean, budget);
 			}
 		}
 	} // end of processAttachment
 
-	private static void setAnodeValue(BodypartBean anode, Part p) {
-		setAnodeValue(anode, p, "-- Message body has been omitted. Exception thrown from p.getInputStream() --");
+	/*
+	 * reads the content of a part the way processAttachment() does, on the
+	 * first BodypartBean.getValue() call.
+	 */
+	private static final class PartValueLoader implements BodypartBean.ValueLoader {
+		private final Part part;
+		private final MessageBean msgBean;
+		private final ParseBudget budget;
+
+		PartValueLoader(Part part, MessageBean msgBean, ParseBudget budget) {
+			this.part = part;
+			this.msgBean = msgBean;
+			this.budget = budget;
+		}
+
+		public void load(BodypartBean node) throws IOException, MessagingException {
+			int partSize = part.getSize();
+			if (budget.isExceededBy(partSize)) {
+				truncatePart(node, msgBean, partSize);
+				return;
+			}
+			Object o;
+			try {
+				o = part.getContent();
+			} catch (MessagingException e) {
+				// JavaMail failed to read the part, use its raw data instead
+				logger.error("load() - MessagingException caught, using raw data", e);
+				o = part.getInputStream();
+			} catch (UnsupportedEncodingException e) {
+				logger.error("load() - UnsupportedEncodingException caught, using raw data", e);
+				o = part.getInputStream();
+			}
+			setBoundedValue(node, o, msgBean, budget);
+		}
 	}
 
-	private static void setAnodeValue(BodypartBean anode, Part p, String errmsg) {
+	/*
+	 * component and total size limits of one message. Parts are read until
+	 * the budget runs out, the rest of a part is not read at all.
+	 */
+	private static final class ParseBudget {
+		private final int maxComponentSize;
+		private final int spillThreshold;
+		private long remaining;
+
+		ParseBudget(MimeParseOptions options) {
+			spillThreshold = options.getSpillThreshold();
+			maxComponentSize = options.getMaxComponentSize() > 0 ? options.getMaxComponentSize() : Integer.MAX_VALUE;
+			remaining = options.getMaxTotalSize() > 0 ? options.getMaxTotalSize() : Long.MAX_VALUE;
+		}
+
+		/* number of bytes the next part may take */
+		synchronized int getLimit() {
+			return (int) Math.min(maxComponentSize, remaining);
+		}
+
+		/* true if a part of this size, -1 if unknown, can't be read in full */
+		boolean isExceededBy(int size) {
+			return size > getLimit();
+		}
+
+		int getSpillThreshold() {
+			return spillThreshold;
+		}
+
+		synchronized void consume(int size) {
+			remaining = Math.max(0, remaining - size);
+		}
+	}
+
+	/*
+	 * set a String or InputStream content to the node, cut short to the
+	 * budget.
+	 */
+	private static void setBoundedValue(BodypartBean aNode, Object o, MessageBean msgBean, ParseBudget budget) {
+		int limit = budget.getLimit();
+		if (o instanceof InputStream) {
+			if (!aNode.setValue((InputStream) o, limit, budget.getSpillThreshold())) {
+				logger.warn("setBoundedValue() - " + aNode.getContentType() + " truncated at " + limit + " bytes");
+				msgBean.setTruncated(true);
+			}
+		} else if (o != null) {
+			String str = o.toString();
+			if (str.length() > limit) {
+				logger.warn("setBoundedValue() - " + aNode.getContentType() + " truncated at " + limit + " bytes");
+				str = str.substring(0, limit);
+				aNode.setTruncated(true);
+				msgBean.setTruncated(true);
+			}
+			aNode.setValue(str);
+		} else {
+			aNode.setValue((Object) null);
+		}
+		budget.consume(aNode.getValueSize());
+	}
+
+	/*
+	 * replace a part that is over the budget by the truncation mark.
+	 */
+	private static void truncatePart(BodypartBean aNode, MessageBean msgBean, int partSize) {
+		logger.warn("truncatePart() - " + aNode.getContentType() + " of " + partSize + " bytes exceeded limit, not read");
+		aNode.setValue(MESSAGE_TRUNCATED);
+		aNode.setTruncated(true);
+		msgBean.setTruncated(true);
+	}
+
+	private static void setAnodeValue(BodypartBean anode, Part p, MessageBean msgBean, ParseBudget budget) {
+		setAnodeValue(anode, p, "-- Message body has been omitted. Exception thrown from p.getInputStream() --",
+				msgBean, budget);
+	}
+
+	private static void setAnodeValue(BodypartBean anode, Part p, String errmsg, MessageBean msgBean,
+			ParseBudget budget) {
 		try {
-			anode.setValue((InputStream) p.getInputStream());
+			setBoundedValue(anode, (InputStream) p.getInputStream(), msgBean, budget);
 		} catch (Exception e) {
 			anode.setValue(errmsg);
 		}
 	}
 
-	final static MailDateFormat mailDateFormat = new MailDateFormat();
+	/*
+	 * MailDateFormat is a SimpleDateFormat and keeps its state while parsing,
+	 * so every thread gets its own.
+	 */
+	final static ThreadLocal<MailDateFormat> mailDateFormat = new ThreadLocal<MailDateFormat>() {
+		protected MailDateFormat initialValue() {
+			return new MailDateFormat();
+		}
+	};
+
+	/*
+	 * the last value of a header, the one getAllHeaders() used to leave set
+	 */
+	private static String getLastHeader(HeaderIndex headers, String name) {
+		String[] values = headers.get(name);
+		return values == null ? null : values[values.length - 1];
+	}
 
 	private static java.util.Date getHeaderDate(String text) {
 		if (StringUtil.isEmpty(text))
 			return null;
 		try {
-			java.util.Date date = mailDateFormat.parse(text);
+			java.util.Date date = mailDateFormat.get().parse(text);
 			return date;
 		} catch (ParseException e) {
 			logger.warn("getHeaderDate() - ParseException caught parsing: " + text);
@@ -706,14 +888,30 @@ public final class MessageBeanUtil {
 			int pos;
 			if ((pos = addr.indexOf(">")) < 0) {
 				// does it look like <user>? no - append default domain name
-				addr += "@" + hostName;
+				addr += "@" + LocalHost.NAME;
 			} else {
-				addr = addr.substring(0, pos) + "@" + hostName + ">";
+				addr = addr.substring(0, pos) + "@" + LocalHost.NAME + ">";
 			}
 		}
 		return addr;
 	}
 
+	/*
+	 * local host name, resolved once by the first thread that needs it.
+	 */
+	private static final class LocalHost {
+		static final String NAME = resolve();
+
+		private static String resolve() {
+			try {
+				return java.net.InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException e) {
+				logger.warn("resolve() - UnknownHostException caught, default to localhost", e);
+				return "localhost";
+			}
+		}
+	}
+
 	/*
 	 * analyze "Received" header and retrieve address from the header
 	 * 
@@ -791,10 +989,22 @@ public final class MessageBeanUtil {
 	 * @throws IOException
 	 */
 	public static Message beanToMime(MessageBean msgBean) throws MessagingException, IOException {
-		javax.mail.Session session = Session.getDefaultInstance(System.getProperties());
-		if (debugSession)
-			session.setDebug(true);
-		Message msg = new MimeMessage(session);
+		return beanToMime(msgBean, false);
+	}
+
+	/**
+	 * convert message bean to JavaMail Message
+	 * 
+	 * @param msgBean
+	 *            - a MessageBean object
+	 * @param debug
+	 *            - true for JavaMail debug output
+	 * @return JavaMail Message
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public static Message beanToMime(MessageBean msgBean, boolean debug) throws MessagingException, IOException {
+		Message msg = new MimeMessage(MailSessionContext.getDefault().getSession(debug));
 
 		// First Set All Headers from a header List
 		List<MsgHeader> headers = msgBean.getHeaders();
@@ -897,15 +1107,108 @@ public final class MessageBeanUtil {
 	 * @throws MessagingException
 	 */
 	public static Message createMimeMessageFromStream(byte[] mailStream) throws MessagingException {
-		javax.mail.Session session = Session.getDefaultInstance(System.getProperties());
-		session.setDebug(true);
-		ByteArrayInputStream bais = new ByteArrayInputStream(mailStream);
-		Message msg = new MimeMessage(session, bais);
+		return createMimeMessageFromStream(mailStream, false);
+	}
+
+	/**
+	 * create JavaMail Message from SMTP raw stream
+	 * 
+	 * @param mailStream
+	 * @param debug
+	 *            - true for JavaMail debug output
+	 * @return a JavaMail Message
+	 * @throws MessagingException
+	 */
+	public static Message createMimeMessageFromStream(byte[] mailStream, boolean debug) throws MessagingException {
+		// shared, the parts refer to the array instead of copying it
+		SharedByteArrayInputStream bais = new SharedByteArrayInputStream(mailStream);
+		Message msg = new MimeMessage(MailSessionContext.getDefault().getSession(debug), bais);
 		msg.saveChanges();
-		session.setDebug(debugSession);
 		return msg;
 	}
 
+	/**
+	 * create MessageBean from a raw RFC822 file. The file is memory mapped
+	 * and parsed in place, see createMimeMessageFromBuffer().
+	 * 
+	 * @param path
+	 *            - file holding one message, up to 2GB
+	 * @param options
+	 *            - parse options
+	 * @return a MessageBean
+	 * @throws MessagingException
+	 * @throws IOException
+	 *             if the file can't be mapped
+	 */
+	public static MessageBean createMessageBeanFromFile(Path path, MimeParseOptions options)
+			throws MessagingException, IOException {
+		return createMessageBeanFromBuffer(mapFile(path), options);
+	}
+
+	/**
+	 * create MessageBean from a raw RFC822 message held in a buffer, like a
+	 * region of a memory mapped mail archive.
+	 * 
+	 * @param buffer
+	 *            - the message, between position and limit
+	 * @param options
+	 *            - parse options
+	 * @return a MessageBean
+	 * @throws MessagingException
+	 */
+	public static MessageBean createMessageBeanFromBuffer(ByteBuffer buffer, MimeParseOptions options)
+			throws MessagingException {
+		MimeMessage msg = createMimeMessageFromBuffer(buffer);
+		try {
+			return mimeToBean(msg, options);
+		} catch (IOException e) {
+			logger.error("IOException caught", e);
+			throw new MessagingException(e.toString(), e);
+		}
+	}
+
+	/**
+	 * create JavaMail Message from a raw RFC822 message held in a buffer.
+	 * Only the headers are parsed here. The message and its parts keep views
+	 * of the buffer through a SharedInputStream, a part is decoded when its
+	 * content is read and nothing is copied to the heap before that.
+	 * <p>
+	 * The message is taken as is, unlike createMimeMessageFromStream() it is
+	 * not saved, which would give it a new Message-ID.
+	 * 
+	 * @param buffer
+	 *            - the message, between position and limit. The buffer is
+	 *            not changed and must not be changed while the message is in
+	 *            use.
+	 * @return a JavaMail Message
+	 * @throws MessagingException
+	 */
+	public static MimeMessage createMimeMessageFromBuffer(ByteBuffer buffer) throws MessagingException {
+		return new MimeMessage(MailSessionContext.getDefault().getSession(), new ByteBufferInputStream(buffer));
+	}
+
+	/**
+	 * map a file read-only. The mapping stays valid after the channel is
+	 * closed, it is released when the buffer is garbage collected.
+	 * 
+	 * @param path
+	 *            - file, up to 2GB
+	 * @return a buffer over the whole file
+	 * @throws IOException
+	 */
+	public static MappedByteBuffer mapFile(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(path + " is too large to map, map a region of it instead");
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			channel.close();
+		}
+	}
+
 	private static void constructMultiPart(Multipart mp, BodypartBean aNode, int level)
 			throws MessagingException, IOException {
 
@@ -929,17 +1232,19 @@ public final class MessageBeanUtil {
 		}
 	}
 
-	private static final Set<String> reservedHeaders = new HashSet<String>();
+	private static final Set<String> reservedHeaders;
+	static {
+		Set<String> headers = new HashSet<String>();
+		headers.add("Delivered-To");
+		headers.add("Received");
+		headers.add("Message-ID");
+		headers.add("Subject");
+		headers.add("Return-Path");
+		// headers.add("User-Agent");
+		reservedHeaders = Collections.unmodifiableSet(headers);
+	}
 
 	private static Set<String> getReservedHeaders() {
-		if (reservedHeaders.isEmpty()) {
-			reservedHeaders.add("Delivered-To");
-			reservedHeaders.add("Received");
-			reservedHeaders.add("Message-ID");
-			reservedHeaders.add("Subject");
-			reservedHeaders.add("Return-Path");
-			// reservedHeaders.add("User-Agent");
-		}
 		return reservedHeaders;
 	}
 
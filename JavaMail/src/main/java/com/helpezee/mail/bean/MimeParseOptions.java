@@ -0,0 +1,103 @@
+package com.helpezee.mail.bean;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Options that control how MessageBeanUtil.mimeToBean() converts a message.
+ *
+ * @author JackW
+ */
+public class MimeParseOptions {
+
+	private boolean lazy = false;
+	private int maxComponentSize = 0; // in bytes, 0 for no limit
+	private int maxTotalSize = 0; // in bytes, 0 for no limit
+	private int spillThreshold = 0; // in bytes, 0 to keep all parts on the heap
+
+	/**
+	 * the default options: every part is read while the bean is built
+	 */
+	public MimeParseOptions() {
+	}
+
+	/**
+	 * In lazy mode the BodypartBean tree is built from the message structure
+	 * and headers only. The content of a leaf part is read the first time
+	 * BodypartBean.getValue() is called, so parts that are never looked at,
+	 * like images or PDF attachments, are never downloaded or decoded.
+	 * <p>
+	 * The values are read from the source message, which must stay available
+	 * (for IMAP: its folder must stay open) until the bean has been processed.
+	 *
+	 * @return true if part content is read on first access
+	 */
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	/**
+	 * A part larger than this is not read, or read up to the limit if its size
+	 * is not known in advance, and is marked as truncated.
+	 * 
+	 * @return maximum size of a part in bytes, 0 for no limit
+	 */
+	public int getMaxComponentSize() {
+		return maxComponentSize;
+	}
+
+	public void setMaxComponentSize(int maxComponentSize) {
+		this.maxComponentSize = maxComponentSize;
+	}
+
+	/**
+	 * Once the parts read add up to this size the remaining parts are
+	 * truncated. A message whose reported size (RFC822.SIZE for IMAP) is
+	 * larger is not read at all, only its envelope and headers are kept.
+	 * 
+	 * @return maximum size of a message in bytes, 0 for no limit
+	 */
+	public int getMaxTotalSize() {
+		return maxTotalSize;
+	}
+
+	public void setMaxTotalSize(int maxTotalSize) {
+		this.maxTotalSize = maxTotalSize;
+	}
+
+	/**
+	 * Binary parts larger than this are written to a temporary file instead
+	 * of the heap, see PartStorage. The files are deleted by
+	 * BodypartBean.release().
+	 * 
+	 * @return largest part kept on the heap in bytes, 0 for no limit
+	 */
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public String toString() {
+		return "lazy=" + lazy + ", maxComponentSize=" + maxComponentSize + ", maxTotalSize=" + maxTotalSize
+				+ ", spillThreshold=" + spillThreshold;
+	}
+}
@@ -0,0 +1,325 @@
+package com.helpezee.mail.bean;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the value of a body part, either on the heap or, for parts above a
+ * threshold, in a temporary file.
+ * <p>
+ * A file backed part is exposed as a stream or a read-only MappedByteBuffer,
+ * so large attachments don't sit in the heap while a message is processed.
+ * The temporary file is deleted by release(), which BodypartBean.release()
+ * calls for the whole tree once the message has been processed. Files left by
+ * a process that was killed are deleted by sweep().
+ *
+ * @author JackW
+ */
+public abstract class PartStorage {
+
+	public static Logger logger = LoggerFactory.getLogger(PartStorage.class);
+
+	/** directory for the temporary files, default is java.io.tmpdir */
+	public static final String SPILL_DIR_PROPERTY = "mail.part.spill.dir";
+
+	private static final String TEMP_PREFIX = "mailpart";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private boolean truncated = false;
+
+	/**
+	 * read a stream into a storage. The bytes stay on the heap until more than
+	 * spillThreshold bytes have been read, the rest goes to a temporary file.
+	 *
+	 * @param is
+	 *            - input stream
+	 * @param maxSize
+	 *            - maximum number of bytes to read, the storage is marked as
+	 *            truncated if the stream holds more
+	 * @param spillThreshold
+	 *            - heap size limit, 0 to keep everything on the heap
+	 * @return the storage
+	 * @throws IOException
+	 *             if writing the temporary file failed
+	 */
+	public static PartStorage read(InputStream is, int maxSize, int spillThreshold) throws IOException {
+		if (!(is instanceof BufferedInputStream)) {
+			is = new BufferedInputStream(is);
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int total = 0;
+		int len;
+		boolean complete = true;
+		File file = null;
+		OutputStream os = baos;
+		try {
+			while ((len = is.read(buf)) > 0) {
+				if (len > maxSize - total) {
+					// stop reading, the rest is never looked at
+					os.write(buf, 0, maxSize - total);
+					total = maxSize;
+					complete = false;
+					break;
+				}
+				if (file == null && spillThreshold > 0 && total + len > spillThreshold) {
+					try {
+						file = createTempFile();
+						os = new BufferedOutputStream(new FileOutputStream(file));
+					} catch (IOException e) {
+						// no room on disk, carry on with the heap
+						logger.error("IOException caught while creating a temporary file", e);
+						file = null;
+						spillThreshold = 0;
+					}
+					if (file != null) {
+						baos.writeTo(os);
+						baos = null;
+					}
+				}
+				os.write(buf, 0, len);
+				total += len;
+			}
+		} catch (IOException e) {
+			if (file != null) {
+				os.close();
+				delete(file);
+				throw e;
+			}
+			// same as BodypartBean.setValue(InputStream), keep what was read
+		}
+		PartStorage storage;
+		if (file == null) {
+			storage = new HeapStorage(baos.toByteArray());
+		} else {
+			os.close();
+			storage = new FileStorage(file, total);
+		}
+		storage.truncated = !complete;
+		return storage;
+	}
+
+	/**
+	 * @param value
+	 *            - bytes
+	 * @return a heap storage holding the bytes
+	 */
+	public static PartStorage wrap(byte[] value) {
+		return new HeapStorage(value);
+	}
+
+	/**
+	 * @return number of bytes stored
+	 */
+	public abstract int getSize();
+
+	/**
+	 * @return the bytes, read from the file for file storage
+	 * @throws IOException
+	 */
+	public abstract byte[] getBytes() throws IOException;
+
+	/**
+	 * @return a new stream over the bytes
+	 * @throws IOException
+	 */
+	public abstract InputStream getInputStream() throws IOException;
+
+	/**
+	 * @return a read-only buffer over the bytes, memory mapped for file
+	 *         storage
+	 * @throws IOException
+	 */
+	public abstract ByteBuffer getByteBuffer() throws IOException;
+
+	/**
+	 * @return true if the bytes are kept in a temporary file
+	 */
+	public abstract boolean isFileBacked();
+
+	/**
+	 * free the storage, the temporary file is deleted.
+	 */
+	public abstract void release();
+
+	/**
+	 * @return true if the stream held more than the maximum size
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * delete the temporary files left in the spill directory by a process
+	 * that ended before it could release them. Files younger than minAge may
+	 * belong to a poller that is still running and are kept.
+	 *
+	 * @param minAge
+	 *            - age in milliseconds a file must have to be deleted
+	 * @return number of files deleted
+	 */
+	public static int sweep(long minAge) {
+		String dirName = System.getProperty(SPILL_DIR_PROPERTY, System.getProperty("java.io.tmpdir"));
+		File[] files = new File(dirName).listFiles();
+		int deleted = 0;
+		long before = System.currentTimeMillis() - minAge;
+		for (int i = 0; files != null && i < files.length; i++) {
+			File file = files[i];
+			String name = file.getName();
+			if (name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX) && file.isFile()
+					&& file.lastModified() < before) {
+				if (file.delete()) {
+					deleted++;
+				} else {
+					logger.warn("sweep() - failed to delete " + file);
+				}
+			}
+		}
+		if (deleted > 0) {
+			logger.info("sweep() - deleted " + deleted + " temporary files from " + dirName);
+		}
+		return deleted;
+	}
+
+	private static File createTempFile() throws IOException {
+		String dirName = System.getProperty(SPILL_DIR_PROPERTY);
+		File dir = dirName == null ? null : new File(dirName);
+		if (dir != null && !dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Failed to create directory " + dir);
+		}
+		return File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, dir);
+	}
+
+	private static void delete(File file) {
+		if (file.exists() && !file.delete()) {
+			logger.warn("delete() - failed to delete " + file);
+		}
+	}
+
+	/*
+	 * bytes on the heap
+	 */
+	private static final class HeapStorage extends PartStorage {
+		private final byte[] value;
+
+		HeapStorage(byte[] value) {
+			this.value = value;
+		}
+
+		public int getSize() {
+			return value.length;
+		}
+
+		public byte[] getBytes() {
+			return value;
+		}
+
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(value);
+		}
+
+		public ByteBuffer getByteBuffer() {
+			return ByteBuffer.wrap(value).asReadOnlyBuffer();
+		}
+
+		public boolean isFileBacked() {
+			return false;
+		}
+
+		public void release() {
+		}
+	}
+
+	/*
+	 * bytes in a temporary file
+	 */
+	private static final class FileStorage extends PartStorage {
+		private final File file;
+		private final int size;
+		private volatile boolean released = false;
+
+		FileStorage(File file, int size) {
+			this.file = file;
+			this.size = size;
+			logger.debug("FileStorage() - " + size + " bytes written to " + file);
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public byte[] getBytes() throws IOException {
+			checkReleased();
+			byte[] bytes = new byte[size];
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				raf.readFully(bytes);
+			} finally {
+				raf.close();
+			}
+			return bytes;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			checkReleased();
+			return new BufferedInputStream(new FileInputStream(file));
+		}
+
+		public ByteBuffer getByteBuffer() throws IOException {
+			checkReleased();
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				// the mapping stays valid after the channel is closed
+				return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} finally {
+				raf.close();
+			}
+		}
+
+		public boolean isFileBacked() {
+			return true;
+		}
+
+		public void release() {
+			if (!released) {
+				released = true;
+				delete(file);
+			}
+		}
+
+		private void checkReleased() throws IOException {
+			if (released) {
+				throw new IOException("Part storage has been released: " + file);
+			}
+		}
+	}
+}
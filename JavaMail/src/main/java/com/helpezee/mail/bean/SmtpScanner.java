@@ -5,7 +5,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -24,7 +28,6 @@ public final class SmtpScanner {
 
 	final int maxLenToScan = 8192 * 4; // scan up to 32k
 
-	private static final HashMap<String, String> RFC1893_STATUS_CODE = new HashMap<String, String>();
 
 	public static enum BOUNCETYPE {
 		GENERIC
@@ -38,23 +41,102 @@ public final class SmtpScanner {
 		MDN_RECEIPT, // MDN - read receipt
 	}
 
-	private static SmtpScanner smtpCodeScan = null;
+	private static volatile SmtpScanner smtpCodeScan = null;
+
+	/** reply text of a RFC2821 code is looked for this far after the code */
+	static final int MAX_REPLY_TEXT = 256;
+
+	/*
+	 * what may come between a reply code and the words of its reply text: an
+	 * enhanced status code, the address the reply is about, and the standard
+	 * "Requested action not taken:" wording.
+	 */
+	private static final String REPLY_TEXT_PREFIX = "(?:#?[245]\\.\\d{1,3}\\.\\d{1,3}\\s+)?"
+			+ "(?:<[^<>\\s]*>:?\\s+)?"
+			+ "(?:requested\\s+(?:mail\\s+)?action\\s+(?:not\\s+taken|aborted):?\\s*)?";
+
+	/*
+	 * loaded once, read-only afterwards, shared by all threads.
+	 * 
+	 * RFC1893 descriptions are kept in a dense table indexed by class, subject
+	 * and detail, sized to the largest subject and detail in the file.
+	 * RFC2821 descriptions and reply text patterns are indexed by the reply
+	 * code itself.
+	 */
+	private final String[] rfc1893Table;
+	private final int subjectSlots;
+	private final int detailSlots;
+	private final String[] rfc2821Table = new String[1000];
+	private final Pattern[] rfc2821Text = new Pattern[1000];
 
 	/**
 	 * default constructor
 	 */
 	private SmtpScanner() throws IOException {
-		loadRfc1893StatusCode();
+		Map<Integer, String> codes = loadRfc1893StatusCode();
+		int maxSubject = 0, maxDetail = 0;
+		for (Integer code : codes.keySet()) {
+			maxSubject = Math.max(maxSubject, getSubject(code.intValue()));
+			maxDetail = Math.max(maxDetail, getDetail(code.intValue()));
+		}
+		subjectSlots = maxSubject + 1;
+		detailSlots = maxDetail + 1;
+		rfc1893Table = new String[10 * subjectSlots * detailSlots];
+		for (Map.Entry<Integer, String> entry : codes.entrySet()) {
+			int code = entry.getKey().intValue();
+			rfc1893Table[rfc1893Index(getClass(code), getSubject(code), getDetail(code))] = entry.getValue();
+		}
+		loadRfc2821ReplyCode();
 	}
 
+	/**
+	 * @return the shared scanner, safe for concurrent use
+	 * @throws IOException
+	 *             if the RFC1893 or RFC2821 code table can't be loaded
+	 */
 	public static SmtpScanner getInstance() throws IOException {
-		if (smtpCodeScan == null) {
-			smtpCodeScan = new SmtpScanner();
+		SmtpScanner scanner = smtpCodeScan;
+		if (scanner == null) {
+			synchronized (SmtpScanner.class) {
+				scanner = smtpCodeScan;
+				if (scanner == null) {
+					scanner = smtpCodeScan = new SmtpScanner();
+				}
+			}
 		}
-		return smtpCodeScan;
+		return scanner;
 	}
 
-	private static Pattern pattern1 = Pattern.compile("\\s([245]\\.\\d{1,3}\\.\\d{1,3})\\s", Pattern.DOTALL);
+	/**
+	 * pack a RFC1893/RFC3463 status code, class.subject.detail, into an int.
+	 * 
+	 * @param cls
+	 *            - class, 0 to 9
+	 * @param subject
+	 *            - subject, 0 to 999
+	 * @param detail
+	 *            - detail, 0 to 999
+	 * @return the packed code
+	 */
+	public static int packStatusCode(int cls, int subject, int detail) {
+		return cls << 20 | subject << 10 | detail;
+	}
+
+	private static int getClass(int code) {
+		return code >>> 20;
+	}
+
+	private static int getSubject(int code) {
+		return code >>> 10 & 0x3ff;
+	}
+
+	private static int getDetail(int code) {
+		return code & 0x3ff;
+	}
+
+	private int rfc1893Index(int cls, int subject, int detail) {
+		return (cls * subjectSlots + subject) * detailSlots + detail;
+	}
 
 	/**
 	 * <ul>
@@ -64,83 +146,280 @@ public final class SmtpScanner {
 	 * <li>second pass: check if it contains a 3 digit numeric number: 2xx, 4xx
 	 * or 5xx.
 	 * </ul>
+	 * Only the first 32k of the body are scanned. Codes are read in place, no
+	 * token Strings are made.
 	 * 
-	 * @param str
+	 * @param body
 	 *            - message body
-	 * @param pass
-	 *            - 1) first pass: look for RFC1893 token (x.x.x). 2) second
-	 *            pass: look for RFC2821 token (xxx), must also match reply
-	 *            text.
 	 * @return bounce type or null if no RFC code is found.
 	 */
-	public String scanBody(String body) {
-		if (StringUtil.isEmpty(body)) { // sanity check
+	public String scanBody(CharSequence body) {
+		if (body == null || body.length() == 0) { // sanity check
 			return null;
 		}
+		int end = Math.min(body.length(), maxLenToScan);
+		// first pass: look for RFC1893 token (x.x.x), only one time
+		int code = findRfc1893Code(body, end);
+		if (code >= 0) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("scanBody() - RFC1893 token found: " + getClass(code) + "." + getSubject(code) + "."
+						+ getDetail(code));
+			}
+			return getRfc1893Description(code);
+		}
+		// second pass: look for RFC2821 token (xxx), must also match reply text
+		return findRfc2821Reply(body, end);
+	}
+
+	/**
+	 * same as scanBody(CharSequence), for a message part that hasn't been
+	 * decoded to a String. Only ASCII bytes are looked at.
+	 * 
+	 * @param body
+	 *            - array holding the message part
+	 * @param off
+	 *            - start of the part
+	 * @param len
+	 *            - length of the part
+	 * @return bounce type or null if no RFC code is found.
+	 */
+	public String scanBody(byte[] body, int off, int len) {
+		if (body == null) {
+			return null;
+		}
+		return scanBody(new ByteCharSequence(body, off, len));
+	}
+
+	/**
+	 * @param code
+	 *            - packed code, see packStatusCode()
+	 * @return the description of the RFC1893 code, or null if it's not in the
+	 *         table
+	 */
+	public String getRfc1893Description(int code) {
+		int cls = getClass(code), subject = getSubject(code), detail = getDetail(code);
+		if (cls > 9 || subject >= subjectSlots || detail >= detailSlots) {
+			return null;
+		}
+		return rfc1893Table[rfc1893Index(cls, subject, detail)];
+	}
+
+	/**
+	 * @param code
+	 *            - RFC2821 reply code, 200 to 599
+	 * @return the description of the reply code, or null if it's not in the
+	 *         table
+	 */
+	public String getRfc2821Description(int code) {
+		return code < 0 || code >= rfc2821Table.length ? null : rfc2821Table[code];
+	}
+
+	/*
+	 * same as the pattern \s([245]\.\d{1,3}\.\d{1,3})\s, returns the packed
+	 * code of the first match or -1
+	 */
+	static int findRfc1893Code(CharSequence text, int end) {
+		for (int i = 1; i + 5 <= end; i++) {
+			char c = text.charAt(i);
+			if ((c != '2' && c != '4' && c != '5') || text.charAt(i + 1) != '.' || !isSpace(text.charAt(i - 1))) {
+				continue;
+			}
+			int p = i + 2;
+			int subject = 0, digits = 0;
+			for (; p < end && digits < 4 && isDigit(text.charAt(p)); p++, digits++) {
+				subject = subject * 10 + text.charAt(p) - '0';
+			}
+			if (digits == 0 || digits > 3 || p >= end || text.charAt(p) != '.') {
+				continue;
+			}
+			p++;
+			int detail = 0;
+			digits = 0;
+			for (; p < end && digits < 4 && isDigit(text.charAt(p)); p++, digits++) {
+				detail = detail * 10 + text.charAt(p) - '0';
+			}
+			if (digits == 0 || digits > 3 || p >= end || !isSpace(text.charAt(p))) {
+				continue;
+			}
+			return packStatusCode(c - '0', subject, detail);
+		}
+		return -1;
+	}
 
-		Matcher m = pattern1.matcher(StringUtil.cut(body, maxLenToScan));
-		if (m.find()) { // only one time
-			String token = m.group(m.groupCount());
-			System.out.println("##### examineBody(): RFC1893 token found ######: " + token);
-			return searchRfc1893CodeTable(token);
+	/*
+	 * 3 digit reply codes 2xx, 4xx and 5xx, on their own or in front of a
+	 * multi-line reply ("550-"). The first code in the table whose reply text
+	 * pattern matches the text right after it wins.
+	 */
+	private String findRfc2821Reply(CharSequence text, int end) {
+		Matcher m = null;
+		for (int i = 0; i + 3 <= end; i++) {
+			char c = text.charAt(i);
+			if ((c != '2' && c != '4' && c != '5') || (i > 0 && !isSpace(text.charAt(i - 1)))) {
+				continue;
+			}
+			if (!isDigit(text.charAt(i + 1)) || !isDigit(text.charAt(i + 2))) {
+				continue;
+			}
+			if (i + 3 < end && !isSpace(text.charAt(i + 3)) && text.charAt(i + 3) != '-') {
+				continue;
+			}
+			int code = (c - '0') * 100 + (text.charAt(i + 1) - '0') * 10 + text.charAt(i + 2) - '0';
+			if (rfc2821Table[code] == null) {
+				continue;
+			}
+			Pattern replyText = rfc2821Text[code];
+			if (replyText != null) {
+				m = m == null ? replyText.matcher(text) : m.usePattern(replyText);
+				// the reply text follows the code, after an optional '-'
+				int textStart = i + 3;
+				if (textStart < end && text.charAt(textStart) == '-') {
+					textStart++;
+				}
+				while (textStart < end && (text.charAt(textStart) == ' ' || text.charAt(textStart) == '\t')) {
+					textStart++;
+				}
+				m.region(textStart, Math.min(end, textStart + MAX_REPLY_TEXT));
+				if (!m.lookingAt()) {
+					continue;
+				}
+			}
+			logger.debug("scanBody() - RFC2821 reply code found: " + code);
+			return rfc2821Table[code];
 		}
 		return null;
 	}
 
-	private String searchRfc1893CodeTable(String token) {
-		return searchRfcCodeTable(token, RFC1893_STATUS_CODE);
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/*
+	 * same as \s in a Pattern
+	 */
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
 	}
 
 	/**
-	 * search smtp code table by RFC token.
+	 * load the rfc1893 code table, from Rfc1893.properties file, into memory.
 	 * 
-	 * @param token
-	 *            - DSN status token, for example: 5.0.0, or 500 depending on
-	 *            the map used
-	 * @param map
-	 *            - either RFC1893_STATUS_CODE or RFC2821_STATUS_CODE
-	 * @return message id of the token
+	 * @return code table, by packed code
+	 * @throws IOException
 	 */
-	private String searchRfcCodeTable(String token, HashMap<String, String> map) {
-		String type = map.get(token);
-		return type;
+	private Map<Integer, String> loadRfc1893StatusCode() throws IOException {
+		Map<Integer, String> codes = new HashMap<Integer, String>();
+		for (String[] entry : loadCodeFile("Rfc1893.properties")) {
+			String[] parts = entry[0].split("\\.");
+			try {
+				if (parts.length != 3 || parts[0].length() != 1) {
+					throw new NumberFormatException(entry[0]);
+				}
+				int subject = Integer.parseInt(parts[1]);
+				int detail = Integer.parseInt(parts[2]);
+				if (subject > 999 || detail > 999) {
+					throw new NumberFormatException(entry[0]);
+				}
+				codes.put(Integer.valueOf(packStatusCode(Integer.parseInt(parts[0]), subject, detail)), entry[1]);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid RFC1893 code in Rfc1893.properties: " + entry[0]);
+			}
+		}
+		return codes;
 	}
 
 	/**
-	 * load the rfc1893 code table, from Rfc1893.properties file, into memory.
+	 * load the rfc2821 reply codes, from Rfc2821.properties file, into memory.
+	 * A description may end with a regular expression in curly braces, the
+	 * reply text that must follow the code.
 	 * 
 	 * @throws IOException
 	 */
-	private void loadRfc1893StatusCode() throws IOException {
+	private void loadRfc2821ReplyCode() throws IOException {
+		for (String[] entry : loadCodeFile("Rfc2821.properties")) {
+			int code;
+			try {
+				code = Integer.parseInt(entry[0]);
+			} catch (NumberFormatException e) {
+				code = -1;
+			}
+			if (code < 200 || code > 599) {
+				throw new IOException("Invalid RFC2821 code in Rfc2821.properties: " + entry[0]);
+			}
+			String desc = entry[1];
+			String regex = getMatchingRegex(desc);
+			if (regex != null) {
+				rfc2821Text[code] = Pattern.compile(REPLY_TEXT_PREFIX + "(?:" + regex + ")",
+						Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+				desc = desc.substring(0, desc.indexOf("{")).trim();
+			}
+			rfc2821Table[code] = desc;
+		}
+	}
+
+	/*
+	 * read the code=desc lines of a code table file
+	 */
+	private List<String[]> loadCodeFile(String name) throws IOException {
+		List<String[]> entries = new ArrayList<String[]>();
 		ClassLoader loader = this.getClass().getClassLoader();
+		InputStream is = loader.getResourceAsStream(name);
+		if (is == null) {
+			logger.error("file " + name + " does not exist");
+			throw new FileNotFoundException(name);
+		}
 		try {
-			// read in RFC1893 status code file and store it in two property
-			// objects
-			InputStream is = loader.getResourceAsStream("Rfc1893.properties");
-			BufferedReader fr = new BufferedReader(new InputStreamReader(is));
-			String inStr = null;// , code=null
+			BufferedReader fr = new BufferedReader(new InputStreamReader(is, StandardCharsets.ISO_8859_1));
+			String inStr = null;
 			while ((inStr = fr.readLine()) != null) {
-				if (!inStr.startsWith("#")) {
-					// split the line by :
-					String[] parts = inStr.split("=");
-
+				int eq = inStr.indexOf("=");
+				if (!inStr.startsWith("#") && eq > 0) {
 					// first part is code, second is desc
-					String code = parts[0].trim();
-					String desc = parts[1].trim();
-
-					// put name, number in HashMap if they are not empty
-					if (!code.equals("") && !desc.equals(""))
-						RFC1893_STATUS_CODE.put(code, desc);
-
+					String code = inStr.substring(0, eq).trim();
+					String desc = inStr.substring(eq + 1).trim();
+					// keep them if they are not empty
+					if (!code.equals("") && !desc.equals("")) {
+						entries.add(new String[] { code, desc });
+					}
 				}
 			}
-			fr.close();
-		} catch (FileNotFoundException ex) {
-			logger.error("file Rfc1893.properties does not exist", ex);
-			throw ex;
+			return entries;
 		} catch (IOException ex) {
-			logger.error("IOException caught during loading statcode.conf", ex);
+			logger.error("IOException caught during loading " + name, ex);
 			throw ex;
+		} finally {
+			is.close();
+		}
+	}
+
+	/*
+	 * a byte array seen as ISO-8859-1 characters, nothing is copied
+	 */
+	private static final class ByteCharSequence implements CharSequence {
+		private final byte[] buf;
+		private final int off;
+		private final int len;
+
+		ByteCharSequence(byte[] buf, int off, int len) {
+			this.buf = buf;
+			this.off = off;
+			this.len = len;
+		}
+
+		public int length() {
+			return len;
+		}
+
+		public char charAt(int index) {
+			return (char) (buf[off + index] & 0xff);
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			return new ByteCharSequence(buf, off + start, end - start);
+		}
+
+		public String toString() {
+			return new String(buf, off, len, StandardCharsets.ISO_8859_1);
 		}
 	}
 
@@ -192,6 +471,9 @@ public final class SmtpScanner {
 			logger.debug("BounceType: " + bounceType);
 			bounceType = scan.scanBody("aaaaab\n400\ntemporary failure ");
 			logger.debug("BounceType: " + bounceType);
+			byte[] reply = "host mx.example.com said: 550 Requested action not taken: mailbox unavailable\n".getBytes();
+			bounceType = scan.scanBody(reply, 0, reply.length);
+			logger.debug("BounceType: " + bounceType);
 			logger.debug(scan.getMatchingRegex("{(?:mailbox|account).{0,180}(?:storage|full|limit|quota)}"));
 		} catch (Exception e) {
 			e.printStackTrace();
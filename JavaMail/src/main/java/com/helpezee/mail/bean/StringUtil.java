@@ -507,13 +507,13 @@ public final class StringUtil {
 		return matcher.matches();
 	}
 
-	private static String bounceRegex = (new StringBuilder("\\s*\\W?((\\w+)\\-(")).append(TOKEN_XHDR_BEGIN)
+	private static final String bounceRegex = (new StringBuilder("\\s*\\W?((\\w+)\\-(")).append(TOKEN_XHDR_BEGIN)
 			.append("\\d+").append(TOKEN_XHDR_END).append(")\\-(.+\\=.+)\\@(.+\\w))\\W?\\s*").toString();
 	// for ex.: bounce-10.07410251.0-jsmith=test.com@localhost
-	private static Pattern bouncePattern = Pattern.compile(bounceRegex);
-	private static String removeRegex = "\\s*\\W?((\\w+)\\-(\\w+)\\-(.+\\=.+)\\@(.+\\w))\\W?\\s*";
+	private static final Pattern bouncePattern = Pattern.compile(bounceRegex);
+	private static final String removeRegex = "\\s*\\W?((\\w+)\\-(\\w+)\\-(.+\\=.+)\\@(.+\\w))\\W?\\s*";
 	// for ex.: remove-testlist-jsmith=test.com@localhost
-	private static Pattern removePattern = Pattern.compile(removeRegex);
+	private static final Pattern removePattern = Pattern.compile(removeRegex);
 
 	public static boolean isVERPAddress(String recipient) {
 		if (isEmpty(recipient)) {
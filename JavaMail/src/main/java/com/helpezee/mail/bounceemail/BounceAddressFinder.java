@@ -16,7 +16,10 @@ package com.helpezee.mail.bounceemail;
  */
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,18 +27,35 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.helpezee.mail.bean.StringUtil;
+import com.helpezee.mail.bounceemail.BoundedCharSequence.BudgetExceededException;
 
 public final class BounceAddressFinder {
 
 	public static Logger logger = LoggerFactory.getLogger(BounceAddressFinder.class);
 
+ /** only the start of a body is scanned, like SmtpScanner.scanBody() */
+ public static final int MAX_LEN_TO_SCAN = 8192 * 4;
+ /** default number of characters a pattern may read, backtracking included */
+ public static final long DEFAULT_MAX_STEPS = 2000000L;
+ /** default time a pattern may run, in milliseconds */
+ public static final long DEFAULT_MAX_MILLIS = 200L;
+ 
  private final List<MyPattern> patternList = new ArrayList<MyPattern>();
+ private volatile long maxSteps = DEFAULT_MAX_STEPS;
+ private volatile long maxMillis = DEFAULT_MAX_MILLIS;
+ // finds the keywords of all patterns in one pass, see find()
+ private final KeywordMatcher keywordMatcher;
  private static BounceAddressFinder addressFinder = null;
  
  private BounceAddressFinder() {
   if (patternList.isEmpty()) {
    loadPatterns();
   }
+  String[] keywords = new String[patternList.size()];
+  for (int i = 0; i < keywords.length; i++) {
+   keywords[i] = patternList.get(i).getKeyword();
+  }
+  keywordMatcher = new KeywordMatcher(keywords);
  }
  
  public static synchronized BounceAddressFinder getInstance() {
@@ -45,16 +65,94 @@ public final class BounceAddressFinder {
   return addressFinder;
  }
  
+ /**
+  * scan a message body for a bounced address. Every pattern has a keyword
+  * that any text it matches must contain. The keywords of all patterns are
+  * looked up in one pass first, and only the patterns whose keyword was
+  * found are run, in their usual order.
+  * <p>
+  * Only the first MAX_LEN_TO_SCAN characters are scanned, and each pattern
+  * runs within the step and time budget set by setMatchBudget(). A pattern
+  * that runs out of budget is counted as a timeout, see getTimeouts(), and
+  * treated as not matching.
+  * 
+  * @param body
+  *            - message body
+  * @return the address found by the first matching pattern, or null
+  */
  public String find(String body) {
+  if (body != null && body.trim().length() > 0) {
+   int len = Math.min(body.length(), MAX_LEN_TO_SCAN);
+   long candidates = keywordMatcher.match(body, 0, len);
+   for (int p = 0; candidates != 0L && p < patternList.size(); p++) {
+    if ((candidates & (1L << p)) == 0L) {
+     continue;
+    }
+    MyPattern myPattern = patternList.get(p);
+    BoundedCharSequence text = new BoundedCharSequence(body, len, maxSteps, maxMillis);
+    try {
+     Matcher m = myPattern.getPattern().matcher(text);
+     if (m.find()) {
+      logMatch(myPattern, m);
+      return m.group(m.groupCount());
+     }
+    }
+    catch (BudgetExceededException e) {
+     myPattern.timeouts.incrementAndGet();
+     logger.warn("find() - pattern " + myPattern.getPatternName() + " abandoned after "
+       + text.getElapsedMillis() + " ms, " + e.getMessage());
+    }
+   }
+  }
+  return null;
+ }
+ 
+ /**
+  * set the budget of each pattern in find().
+  * 
+  * @param maxSteps
+  *            - number of characters a pattern may read, backtracking
+  *            included
+  * @param maxMillis
+  *            - time a pattern may run, in milliseconds
+  */
+ public void setMatchBudget(long maxSteps, long maxMillis) {
+  this.maxSteps = maxSteps;
+  this.maxMillis = maxMillis;
+ }
+ 
+ /**
+  * @return number of times each pattern ran out of budget, by pattern name
+  */
+ public Map<String, Long> getTimeouts() {
+  Map<String, Long> map = new LinkedHashMap<String, Long>();
+  for (MyPattern myPattern : patternList) {
+   map.put(myPattern.getPatternName(), Long.valueOf(myPattern.timeouts.get()));
+  }
+  return map;
+ }
+ 
+ /**
+  * @return number of times any pattern ran out of budget
+  */
+ public long getTimeoutCount() {
+  long total = 0;
+  for (MyPattern myPattern : patternList) {
+   total += myPattern.timeouts.get();
+  }
+  return total;
+ }
+ 
+ /*
+  * run every pattern on the body, the way find() did before the keyword
+  * lookup. Kept for the comparison in main().
+  */
+ String findSequential(String body) {
   if (body != null && body.trim().length() > 0) {
    for (MyPattern myPattern : patternList) {
     Matcher m = myPattern.getPattern().matcher(body);
     if (m.find()) {
-
-      for (int i = 1; i <= m.groupCount(); i++) {
-       logger.info(myPattern.getPatternName() + ", group(" + i + ") - " + m.group(i));
-      
-     }
+     logMatch(myPattern, m);
      return m.group(m.groupCount());
     }
    }
@@ -62,13 +160,74 @@ public final class BounceAddressFinder {
   return null;
  }
  
+ private void logMatch(MyPattern myPattern, Matcher m) {
+  if (logger.isInfoEnabled()) {
+   for (int i = 1; i <= m.groupCount(); i++) {
+    logger.info(myPattern.getPatternName() + ", group(" + i + ") - " + m.group(i));
+   }
+  }
+ }
+ 
+ /**
+  * compare find() with the sequential pattern loop on a bounce body and on
+  * a body no pattern matches.
+  */
+ public static void main(String[] args) {
+  BounceAddressFinder finder = getInstance();
+  StringBuilder sb = new StringBuilder();
+  for (int i = 0; i < 200; i++) {
+   sb.append("Hi team, the quarterly figures are attached. Please review them before Monday's meeting.\n");
+  }
+  String plain = sb.toString();
+  String bounce = plain + "This is the mail system at host example.com.\n\n"
+    + "Unable to deliver message to the following address(es).\n\n<nobody@example.com>:\n"
+    + "550 5.1.1 user unknown\n";
+  int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+  String[] names = { "non-bounce", "bounce" };
+  String[] bodies = { plain, bounce };
+  for (int b = 0; b < bodies.length; b++) {
+   String expected = finder.findSequential(bodies[b]);
+   if (expected == null ? finder.find(bodies[b]) != null : !expected.equals(finder.find(bodies[b]))) {
+    throw new IllegalStateException("Results differ for the " + names[b] + " body");
+   }
+   for (int warmup = 0; warmup < 2; warmup++) {
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+     finder.findSequential(bodies[b]);
+    }
+    long sequential = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+     finder.find(bodies[b]);
+    }
+    long prefiltered = System.nanoTime() - start;
+    if (warmup == 1) {
+     System.out.println(names[b] + ": sequential " + sequential / rounds / 1000 + " us/body, keyword prefilter "
+       + prefiltered / rounds / 1000 + " us/body, result " + expected);
+    }
+   }
+  }
+  // a body that makes the Postfix pattern backtrack
+  sb.setLength(0);
+  for (int i = 0; i < 600; i++) {
+   sb.append("message could not be delivered to recipient, problem\n");
+  }
+  long start = System.nanoTime();
+  String result = finder.find(sb.toString());
+  System.out.println("backtracking body: " + (System.nanoTime() - start) / 1000000L + " ms, result " + result
+    + ", timeouts " + finder.getTimeouts());
+ }
+ 
  private static final class MyPattern {
   private final String patternName;
   private final String patternRegex;
+  private final String keyword; // literal every match contains
   private final Pattern pattern;
-  MyPattern(String name, String value) {
+  private final AtomicLong timeouts = new AtomicLong(0);
+  MyPattern(String name, String value, String keyword) {
    this.patternName = name;
    this.patternRegex = value;
+   this.keyword = keyword;
    pattern = Pattern.compile(patternRegex, Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
   }
   
@@ -81,83 +240,86 @@ public final class BounceAddressFinder {
   public String getPatternRegex() {
    return patternRegex;
   }
+  public String getKeyword() {
+   return keyword;
+  }
  }
  
  private final void loadPatterns() {
   String bodyGmail = 
    "Delivery .{4,10} following recipient(?:s)? failed[\\.|\\s](?:permanently:)?\\s+" +
    "<?(" + StringUtil.getEmailRegex() + ")>?\\s+";
-  patternList.add(new MyPattern("Gmail",bodyGmail));
+  patternList.add(new MyPattern("Gmail",bodyGmail, "following recipient"));
   
   String bodyAol = 
    "\\-{3,6} The following address(?:es|\\(es\\))? had (?:permanent fatal errors|delivery problems) \\-{3,6}\\s+" +
    "<?(" + StringUtil.getEmailRegex() + ")>?(?:\\s|;)";
-  patternList.add(new MyPattern("AOL",bodyAol));
+  patternList.add(new MyPattern("AOL",bodyAol, "the following address"));
   
   String bodyYahoo = 
    "This .{1,10} permanent error.\\s+I(?:'ve| have) given up\\. Sorry it did(?:n't| not) work out\\.\\s+" +
    "<?(" + StringUtil.getEmailRegex() + ")>?";
-  patternList.add(new MyPattern("Yahoo",bodyYahoo));
+  patternList.add(new MyPattern("Yahoo",bodyYahoo, "permanent error"));
   
   String bodyPostfix = 
    "message\\s.*could\\s+not\\s+be\\s+.{0,10}delivered\\s+to\\s.*(?:recipient(?:s)?|destination(?:s)?)" +
    ".{80,180}\\sinclude\\s+this\\s+problem\\s+report.{60,120}" +
    "\\s+<(" + StringUtil.getEmailRegex() + ")>";
-  patternList.add(new MyPattern("Postfix",bodyPostfix));
+  patternList.add(new MyPattern("Postfix",bodyPostfix, "problem"));
   
   String bodyFailed = 
    "Failed\\s+to\\s+deliver\\s+to\\s+\\'(" + StringUtil.getEmailRegex() + ")\\'" +
    ".{1,20}\\smodule.{5,100}\\sreports";
-  patternList.add(new MyPattern("Failed",bodyFailed));
+  patternList.add(new MyPattern("Failed",bodyFailed, "module"));
   
   String bodyFirewall = 
    "Your\\s+message\\s+to:\\s+(" + StringUtil.getEmailRegex() + ")\\s+" +
    ".{1,10}\\sblocked\\s+by\\s.{1,20}\\sSpam\\s+Firewall";
-  patternList.add(new MyPattern("SpamFirewall",bodyFirewall));
+  patternList.add(new MyPattern("SpamFirewall",bodyFirewall, "firewall"));
   
   String bodyFailure = 
    "message\\s.{8,20}\\scould\\s+not\\s+be\\s+delivered\\s.{10,40}\\srecipients" +
    ".{6,20}\\spermanent\\s+error.{10,20}\\saddress(?:\\(es\\))?\\s+failed:" +
    "\\s+(" + StringUtil.getEmailRegex() + ")\\s";
-  patternList.add(new MyPattern("Failure",bodyFailure));
+  patternList.add(new MyPattern("Failure",bodyFailure, "failed:"));
   
   String bodyUnable = 
    "Unable to deliver message to the following address(?:\\(es\\))?.{0,5}" +
    "\\s+<(" + StringUtil.getEmailRegex() + ")>";
-  patternList.add(new MyPattern("Unable",bodyUnable));
+  patternList.add(new MyPattern("Unable",bodyUnable, "unable to deliver message"));
   
   String bodyEtrust = 
    "\\scould not deliver the e(?:\\-)?mail below because\\s.{10,20}\\srecipient(?:s)?\\s.{1,10}\\srejected"+
    ".{60,200}\\s(" + StringUtil.getEmailRegex() + ")";
-  patternList.add(new MyPattern("eTrust",bodyEtrust));
+  patternList.add(new MyPattern("eTrust",bodyEtrust, "mail below because"));
   
   String bodyReport = 
    "\\scollection of report(?:s)? about email delivery\\s.+\\sFAILED:\\s.{1,1000}" +
    "Final Recipient:.{0,20};\\s*(" + StringUtil.getEmailRegex() + ")";
-  patternList.add(new MyPattern("Report",bodyReport));
+  patternList.add(new MyPattern("Report",bodyReport, "about email delivery"));
   
   String bodyNotReach = 
    "Your message.{1,400}did not reach the following recipient(?:\\(s\\))?:" +
    "\\s+(" + StringUtil.getEmailRegex() + ")";
-  patternList.add(new MyPattern("NotReach",bodyNotReach));
+  patternList.add(new MyPattern("NotReach",bodyNotReach, "did not reach the following recipient"));
   
   String bodyFailed2 = 
    "Could not deliver message to the following recipient(?:\\(s\\))?:" +
    "\\s+Failed Recipient:\\s+(" + StringUtil.getEmailRegex() + ")\\s";
-  patternList.add(new MyPattern("Failed2",bodyFailed2));
+  patternList.add(new MyPattern("Failed2",bodyFailed2, "could not deliver message to the following recipient"));
   
   String bodyExceeds = 
    "User(?:'s)?\\s+mailbox\\s+exceeds\\s+allowed\\s+size:\\s+" +
    "(" + StringUtil.getEmailRegex() + ")\\s+";
-  patternList.add(new MyPattern("Exceeds",bodyExceeds));
+  patternList.add(new MyPattern("Exceeds",bodyExceeds, "exceeds"));
   
   String bodyDelayed = 
    "Message\\s+delivery\\s+to\\s+\\'(" + StringUtil.getEmailRegex() + ")\\'" +
    "\\s+delayed.{1,20}\\smodule.{5,100}\\sreports";
-  patternList.add(new MyPattern("Delayed",bodyDelayed));
+  patternList.add(new MyPattern("Delayed",bodyDelayed, "delayed"));
   
   String bodyInvalid = 
    "Invalid\\s+Address(?:es)?.{1,20}\\b(?:TO|addr)\\b.{1,20}\\s+<?(" + StringUtil.getEmailRegex() + ")>?\\s+";
-  patternList.add(new MyPattern("Invalid",bodyInvalid));
+  patternList.add(new MyPattern("Invalid",bodyInvalid, "invalid"));
  }
 }
\ No newline at end of file
@@ -17,13 +17,9 @@ package com.helpezee.mail.bounceemail;
  * If not, see <http://www.gnu.org/licenses/>.
  */
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.List;
-import java.util.StringTokenizer;
 
 import javax.mail.Address;
 import javax.mail.internet.AddressException;
@@ -59,6 +55,8 @@ public final class BounceFinder {
 
 	public final static String VERP_BOUNCE_ADDR_XHEADER = "X-VERP_Bounce_Addr";
 
+	private static volatile BounceFinder bounceFinder = null;
+
 	/**
 	 * default constructor
 	 */
@@ -66,6 +64,27 @@ public final class BounceFinder {
 		rfcScan = SmtpScanner.getInstance();
 	}
 
+	/**
+	 * BounceFinder keeps no state between calls to parse(), one instance can
+	 * be shared by all threads.
+	 * 
+	 * @return the shared instance
+	 * @throws IOException
+	 *             if the RFC1893 code table can't be loaded
+	 */
+	public static BounceFinder getInstance() throws IOException {
+		BounceFinder finder = bounceFinder;
+		if (finder == null) {
+			synchronized (BounceFinder.class) {
+				finder = bounceFinder;
+				if (finder == null) {
+					finder = bounceFinder = new BounceFinder();
+				}
+			}
+		}
+		return finder;
+	}
+
 	/**
 	 * Scans email properties to find out the bounce type. It also checks VERP
 	 * headers to get original recipient.
@@ -97,7 +116,7 @@ public final class BounceFinder {
 				//	logger.debug("parse() - scan message/report status -----<" + LF + new String(attchValue) + ">-----");
 
 					if (bounceType == null) {
-						bounceType = rfcScan.scanBody(new String(attchValue));
+						bounceType = rfcScan.scanBody(attchValue, 0, attchValue.length);
 					}
 					parseDsn(attchValue, msgBean);
 					msgBean.setDsnDlvrStat(new String(attchValue));
@@ -136,7 +155,7 @@ public final class BounceFinder {
 					if (attchValue != null) {
 					//	logger.debug("parse() - scan message/report text -----<" + LF + new String(attchValue) + ">-----");
 						if (bounceType == null) {
-							bounceType = rfcScan.scanBody(new String(attchValue));
+							bounceType = rfcScan.scanBody(attchValue, 0, attchValue.length);
 						}
 						parseDsn(attchValue, msgBean);
 						msgBean.setDsnText(new String(attchValue));
@@ -163,21 +182,18 @@ public final class BounceFinder {
 			MessageNode mNode = msgBean.getRfc822();
 			aNode = BodypartUtil.retrieveRfc822Text(mNode.getBodypartNode(), mNode.getLevel());
 			if (aNode != null) {
-				StringBuffer sb = new StringBuffer();
+				StringBuilder sb = new StringBuilder();
 				// get original message headers
 				List<MsgHeader> vheader = aNode.getHeaders();
 				for (int i = 0; vheader != null && i < vheader.size(); i++) {
 					MsgHeader header = vheader.get(i);
-					sb.append(header.getName() + ": " + header.getValue() + LF);
+					sb.append(header.getName()).append(": ").append(header.getValue()).append(LF);
 				}
 				boolean foundAll = false;
-				String rfcHeaders = sb.toString();
-				if (!StringUtil.isEmpty(rfcHeaders)) {
-					// rfc822 headers
-					//logger.debug("parse() - scan rfc822 headers -----<" + LF + rfcHeaders + ">-----");
-
-					foundAll = parseRfc(rfcHeaders, msgBean);
-					msgBean.setDsnRfc822(rfcHeaders);
+				if (sb.length() > 0) {
+					// rfc822 headers, read from the header list
+					foundAll = parseRfc(Rfc822HeaderExtractor.extract(vheader), msgBean);
+					msgBean.setDsnRfc822(sb.toString());
 				}
 				byte[] attchValue = (byte[]) aNode.getValue();
 				if (attchValue != null) {
@@ -187,9 +203,8 @@ public final class BounceFinder {
 					String mtype = aNode.getMimeType();
 					if (mtype.startsWith("text/") || mtype.startsWith("message/")) {
 						if (foundAll == false) {
-							//logger.debug("parse() - scan rfc822 text -----<" + LF + rfcText + ">-----");
-
-							parseRfc(rfcText, msgBean);
+							// scan the part bytes, not rfcText
+							parseRfc(Rfc822HeaderExtractor.extract(attchValue), msgBean);
 							msgBean.setDsnRfc822(sb.toString());
 						}
 					}
@@ -200,7 +215,7 @@ public final class BounceFinder {
 					}
 				}
 				if (bounceType == null) {
-					bounceType = rfcScan.scanBody(sb.toString());
+					bounceType = rfcScan.scanBody(sb);
 				}
 			}
 		} // end of RFC Scan
@@ -231,29 +246,26 @@ public final class BounceFinder {
 
 		// check VERP bounce address, set bounce type to SOFT_BOUNCE if VERP
 		// recipient found
-		List<MsgHeader> headers = msgBean.getHeaders();
-		for (MsgHeader header : headers) {
-			if (VERP_BOUNCE_ADDR_XHEADER.equals(header.getName())) {
-				logger.info("parse() - VERP Recipient found: ==>" + header.getValue() + "<==");
-				if (msgBean.getOrigRcpt() != null && !StringUtil.isEmpty(header.getValue())
-						&& !msgBean.getOrigRcpt().equalsIgnoreCase(header.getValue())) {
-					logger.warn("parse() - replace original recipient: " + msgBean.getOrigRcpt()
-							+ " with VERP recipient: " + header.getValue());
-				}
-				if (!StringUtil.isEmpty(header.getValue())) {
-					// VERP Bounce - always override
-					msgBean.setOrigRcpt(header.getValue());
-				} else {
-					logger.warn("parse() - " + VERP_BOUNCE_ADDR_XHEADER + " Header found, but it has no value.");
-				}
-				if (bounceType == null) {
-					// a bounced mail shouldn't have Return-Path
-					String rPath = msgBean.getReturnPath() == null ? "" : msgBean.getReturnPath();
-					if (StringUtil.isEmpty(rPath) || "<>".equals(rPath.trim())) {
-						bounceType = BOUNCE_TYPES.SOFT_BOUNCE.toString();
-					}
+		if (msgBean.getHeaderIndex().contains(VERP_BOUNCE_ADDR_XHEADER)) {
+			String verpRcpt = msgBean.getHeaderIndex().getFirst(VERP_BOUNCE_ADDR_XHEADER);
+			logger.info("parse() - VERP Recipient found: ==>" + verpRcpt + "<==");
+			if (msgBean.getOrigRcpt() != null && !StringUtil.isEmpty(verpRcpt)
+					&& !msgBean.getOrigRcpt().equalsIgnoreCase(verpRcpt)) {
+				logger.warn("parse() - replace original recipient: " + msgBean.getOrigRcpt()
+						+ " with VERP recipient: " + verpRcpt);
+			}
+			if (!StringUtil.isEmpty(verpRcpt)) {
+				// VERP Bounce - always override
+				msgBean.setOrigRcpt(verpRcpt);
+			} else {
+				logger.warn("parse() - " + VERP_BOUNCE_ADDR_XHEADER + " Header found, but it has no value.");
+			}
+			if (bounceType == null) {
+				// a bounced mail shouldn't have Return-Path
+				String rPath = msgBean.getReturnPath() == null ? "" : msgBean.getReturnPath();
+				if (StringUtil.isEmpty(rPath) || "<>".equals(rPath.trim())) {
+					bounceType = BOUNCE_TYPES.SOFT_BOUNCE.toString();
 				}
-				break;
 			}
 		}
 
@@ -312,132 +324,77 @@ public final class BounceFinder {
 	 *            - MessageBean object
 	 */
 	private void parseDsn(byte[] attchValue, MessageBean msgBean) {
-		// retrieve Final-Recipient, Action, and Status
-		ByteArrayInputStream bais = new ByteArrayInputStream(attchValue);
-		BufferedReader br = new BufferedReader(new InputStreamReader(bais));
-		String line = null;
-		try {
-			while ((line = br.readLine()) != null) {
-				//logger.debug("parseDsn() - Line: " + line);
-				line = line.trim();
-				if (line.toLowerCase().startsWith("final-recipient:")) {
-					// "Final-Recipient" ":" address-type ";" generic-address
-					// address-type = rfc822 / unknown
-					StringTokenizer st = new StringTokenizer(line, " ;");
-					while (st.hasMoreTokens()) {
-						String token = st.nextToken().trim();
-						if (token.indexOf("@") > 0) {
-							msgBean.setFinalRcpt(token);
-							//logger.info("parseDsn() - Final_Recipient found: ==>" + token + "<==");
-							break;
-						}
-					}
-				} else if (line.toLowerCase().startsWith("original-recipient:")) {
-					// "Original-Recipient" ":" address-type ";" generic-address
-					StringTokenizer st = new StringTokenizer(line, " ;");
-					while (st.hasMoreTokens()) {
-						String token = st.nextToken().trim();
-						if (token.indexOf("@") > 0) {
-							msgBean.setOrigRcpt(token);
-						//	logger.info("parseDsn() - Original_Recipient found: ==>" + token + "<==");
-							break;
-						}
-					}
-				} else if (line.toLowerCase().startsWith("action:")) {
-					/**
-					 * "Action" ":" action-value = 1) failed - could not be
-					 * delivered to the recipient. 2) delayed - the reporting
-					 * MTA has so far been unable to deliver or relay the
-					 * message. 3) delivered - the message was successfully
-					 * delivered. 4) relayed - the message has been relayed or
-					 * gatewayed. 5) expanded - delivered and forwarded by
-					 * reporting MTA to multiple additional recipient addresses.
-					 */
-					String action = line.substring(7).trim();
-					msgBean.setDsnAction(action);
-				//	logger.debug("parseDsn() - Action found: ==>" + action + "<==");
-				} else if (line.toLowerCase().startsWith("status:")) {
-					// "Status" ":" status-code (digit "." 1*3digit "." 1*3
-					// digit)
-					String status = line.substring(7).trim();
-					if (status.indexOf(" ") > 0) {
-						status = status.substring(0, status.indexOf(" "));
-					}
-					msgBean.setDsnStatus(status);
-				//	logger.debug("parseDsn() - Status found: ==>" + status + "<==");
-				} else if (line.toLowerCase().startsWith("diagnostic-code:")) {
-					// "Diagnostic-Code" ":" diagnostic-code
-					String diagcode = line.substring(16).trim();
-					msgBean.setDiagnosticCode(diagcode);
-					//logger.debug("parseDsn() - Diagnostic-Code: found: ==>" + diagcode + "<==");
-				}
+		// retrieve Final-Recipient, Action, and Status, the last one found wins
+		List<DsnFieldParser.Recipient> recipients = DsnFieldParser.parse(attchValue);
+		for (int i = 0; i < recipients.size(); i++) {
+			DsnFieldParser.Recipient rcpt = recipients.get(i);
+			String finalRcpt = rcpt.getFinalRecipient();
+			if (finalRcpt != null) {
+				msgBean.setFinalRcpt(finalRcpt);
+			}
+			String origRcpt = rcpt.getOriginalRecipient();
+			if (origRcpt != null) {
+				msgBean.setOrigRcpt(origRcpt);
+			}
+			/**
+			 * "Action" ":" action-value = 1) failed - could not be delivered
+			 * to the recipient. 2) delayed - the reporting MTA has so far been
+			 * unable to deliver or relay the message. 3) delivered - the
+			 * message was successfully delivered. 4) relayed - the message has
+			 * been relayed or gatewayed. 5) expanded - delivered and forwarded
+			 * by reporting MTA to multiple additional recipient addresses.
+			 */
+			if (rcpt.has(DsnFieldParser.ACTION)) {
+				msgBean.setDsnAction(rcpt.getAction());
+			}
+			// "Status" ":" status-code (digit "." 1*3digit "." 1*3 digit)
+			if (rcpt.has(DsnFieldParser.STATUS)) {
+				msgBean.setDsnStatus(rcpt.getStatus());
+			}
+			// "Diagnostic-Code" ":" diagnostic-code
+			if (rcpt.has(DsnFieldParser.DIAGNOSTIC_CODE)) {
+				msgBean.setDiagnosticCode(rcpt.getDiagnosticCode());
 			}
-		} catch (IOException e) {
-			logger.error("IOException caught during parseDsn()", e);
 		}
 	}
 
 	/**
-	 * parse message/rfc822 to retrieve original email properties: final
+	 * apply the original email properties found in message/rfc822: final
 	 * recipient, original subject and original SMTP message-id.
 	 * 
-	 * @param rfc_text
-	 *            - rfc822 text
+	 * @param rfcHeaders
+	 *            - headers found in the rfc822 part
 	 * @param msgBean
 	 *            - MessageBean object
 	 * @return true if all three properties were found
 	 */
-	private boolean parseRfc(String rfc_text, MessageBean msgBean) {
-		// retrieve original To address
-		ByteArrayInputStream bais = new ByteArrayInputStream(rfc_text.getBytes());
-		BufferedReader br = new BufferedReader(new InputStreamReader(bais));
-		int lineCount = 0;
-		boolean gotToAddr = false, gotSubj = false, gotSmtpId = false;
-		// allows to quit scan once all three headers are found
-		String line = null;
-		try {
-			while ((line = br.readLine()) != null) {
-
-			//	logger.debug("parseRfc() - Line: " + line);
-				line = line.trim();
-				if (line.toLowerCase().startsWith("to:")) {
-					// "To" ":" generic-address
-					String token = line.substring(3).trim();
-					if (StringUtil.isEmpty(msgBean.getFinalRcpt())) {
-						msgBean.setFinalRcpt(token);
-					} else if (StringUtil.compareEmailAddrs(msgBean.getFinalRcpt(), token) != 0) {
-						logger.error("parseRfc() - Final_Rcpt from RFC822: " + token + " is different from DSN's: "		+ msgBean.getFinalRcpt());
-					}
-				//	logger.info("parseRfc() - Final_Recipient(RFC822 To) found: ==>" + token + "<==");
-					gotToAddr = true;
-				} else if (line.toLowerCase().startsWith("subject:")) {
-					// "Subject" ":" subject text
-					String token = line.substring(8).trim();
-					if (StringUtil.isEmpty(msgBean.getOrigSubject())) {
-						msgBean.setOrigSubject(token);
-					}
-					logger.info("parseRfc() - Original_Subject(RFC822 To) found: ==>" + token + "<==");
-					gotSubj = true;
-				} else if (line.toLowerCase().startsWith("message-id:")) {
-					// "Message-Id" ":" SMTP message id
-					String token = line.substring(11).trim();
-					if (StringUtil.isEmpty(msgBean.getSmtpMessageId())) {
-						msgBean.setRfcMessageId(token);
-					}
-					logger.info("parseRfc() - Smtp Message-Id(RFC822 To) found: ==>" + token + "<==");
-					gotSmtpId = true;
-				}
-				if (gotToAddr && gotSubj && gotSmtpId) {
-					return true;
-				}
-				if (++lineCount > 100 && line.indexOf(":") < 0) {
-					break; // check if it's a header after 100 lines
-				}
-			} // end of while
-		} catch (IOException e) {
-			logger.error("IOException caught during parseRfc()", e);
+	private boolean parseRfc(Rfc822HeaderExtractor rfcHeaders, MessageBean msgBean) {
+		if (rfcHeaders.has(Rfc822HeaderExtractor.TO)) {
+			// "To" ":" generic-address
+			String token = rfcHeaders.getTo();
+			if (StringUtil.isEmpty(msgBean.getFinalRcpt())) {
+				msgBean.setFinalRcpt(token);
+			} else if (StringUtil.compareEmailAddrs(msgBean.getFinalRcpt(), token) != 0) {
+				logger.error("parseRfc() - Final_Rcpt from RFC822: " + token + " is different from DSN's: "		+ msgBean.getFinalRcpt());
+			}
 		}
-		return false;
+		if (rfcHeaders.has(Rfc822HeaderExtractor.SUBJECT)) {
+			// "Subject" ":" subject text
+			String token = rfcHeaders.getSubject();
+			if (StringUtil.isEmpty(msgBean.getOrigSubject())) {
+				msgBean.setOrigSubject(token);
+			}
+			logger.info("parseRfc() - Original_Subject(RFC822 To) found: ==>" + token + "<==");
+		}
+		if (rfcHeaders.has(Rfc822HeaderExtractor.MESSAGE_ID)) {
+			// "Message-Id" ":" SMTP message id
+			String token = rfcHeaders.getMessageId();
+			if (StringUtil.isEmpty(msgBean.getSmtpMessageId())) {
+				msgBean.setRfcMessageId(token);
+			}
+			logger.info("parseRfc() - Smtp Message-Id(RFC822 To) found: ==>" + token + "<==");
+		}
+		return rfcHeaders.hasAll();
 	}
 
 	public static void main(String[] args) {
@@ -0,0 +1,178 @@
+package com.helpezee.mail.bounceemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helpezee.mail.bean.MessageBeanUtil;
+
+/**
+ * Triage a message from its envelope and headers only, before any part of the
+ * body is downloaded.
+ * <p>
+ * A message is a bounce candidate when one of these is true:
+ * <ul>
+ * <li>the Return-Path is the null sender &lt;&gt;
+ * <li>it comes from MAILER-DAEMON or postmaster
+ * <li>its Content-Type is multipart/report or message/rfc822, or one of its
+ * parts is
+ * <li>it has an Auto-Submitted header other than "no"
+ * <li>it has an X-Failed-Recipients or an X-VERP_Bounce_Addr header
+ * <li>its subject looks like a delivery failure notice
+ * </ul>
+ * Candidates go through the full parse. BounceFinder only reads the body of a
+ * message, for RFC1893 codes, once it has found a message/rfc822 or
+ * multipart/report part in it. Everything else gets the same verdict from its
+ * headers alone.
+ * <p>
+ * The parts are found from the content types of the message structure. For
+ * IMAP that is the BODYSTRUCTURE of the CONTENT_INFO prefetch, no part
+ * content is downloaded.
+ *
+ * @author JackW
+ */
+public final class BounceHeaderClassifier {
+
+	public static Logger logger = LoggerFactory.getLogger(BounceHeaderClassifier.class);
+
+	static final String AUTO_SUBMITTED = "Auto-Submitted";
+	static final String X_FAILED_RECIPIENTS = "X-Failed-Recipients";
+
+	private static final String[] BOUNCE_SENDERS = { "mailer-daemon", "postmaster" };
+
+	// parts that make BounceFinder scan the body
+	private static final String[] REPORT_TYPES = { "multipart/report", "message/rfc822" };
+
+	// lower case
+	private static final String[] BOUNCE_SUBJECTS = { "undeliverable", "undelivered", "delivery status notification",
+			"delivery failure", "delivery has failed", "mail delivery failed", "returned mail", "failure notice",
+			"could not be delivered", "delivery notification", "mail system error", "nondeliverable" };
+
+	private BounceHeaderClassifier() {
+	}
+
+	/**
+	 * check the envelope and headers of a message. For IMAP, they come from
+	 * the ENVELOPE and header prefetch of the read window.
+	 *
+	 * @param msg
+	 *            - message
+	 * @return the reason why the message may be a bounce, or null if it is
+	 *         clearly not one
+	 * @throws MessagingException
+	 */
+	public static String getCandidateReason(Message msg) throws MessagingException {
+		String[] returnPath = msg.getHeader(MessageBeanUtil.RETURN_PATH);
+		if (returnPath != null && returnPath.length > 0) {
+			String rPath = returnPath[0].trim();
+			if (rPath.length() == 0 || "<>".equals(rPath)) {
+				return "null Return-Path";
+			}
+		}
+		Address[] from = msg.getFrom();
+		for (int i = 0; from != null && i < from.length; i++) {
+			String addr = from[i].toString().toLowerCase(Locale.ENGLISH);
+			for (String sender : BOUNCE_SENDERS) {
+				if (addr.indexOf(sender) >= 0) {
+					return "From " + sender;
+				}
+			}
+		}
+		String structure = getStructureReason(msg);
+		if (structure != null) {
+			return structure;
+		}
+		String[] autoSubmitted = msg.getHeader(AUTO_SUBMITTED);
+		if (autoSubmitted != null && autoSubmitted.length > 0 && !"no".equalsIgnoreCase(autoSubmitted[0].trim())) {
+			return AUTO_SUBMITTED + ": " + autoSubmitted[0].trim();
+		}
+		if (msg.getHeader(X_FAILED_RECIPIENTS) != null) {
+			return X_FAILED_RECIPIENTS;
+		}
+		if (msg.getHeader(BounceFinder.VERP_BOUNCE_ADDR_XHEADER) != null) {
+			return BounceFinder.VERP_BOUNCE_ADDR_XHEADER;
+		}
+		String subject = msg.getSubject();
+		if (subject != null) {
+			subject = subject.toLowerCase(Locale.ENGLISH);
+			for (String keyword : BOUNCE_SUBJECTS) {
+				if (subject.indexOf(keyword) >= 0) {
+					return "Subject " + keyword;
+				}
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * the first message/rfc822 or multipart/report part, the part itself
+	 * included. Only the content of multipart parts is asked for, which
+	 * IMAPMessage builds from its BODYSTRUCTURE.
+	 */
+	private static String getStructureReason(Part part) throws MessagingException {
+		String contentType = part.getContentType();
+		if (contentType == null) {
+			return null;
+		}
+		contentType = contentType.trim().toLowerCase(Locale.ENGLISH);
+		for (String type : REPORT_TYPES) {
+			if (contentType.startsWith(type)) {
+				return type;
+			}
+		}
+		if (!contentType.startsWith("multipart/")) {
+			return null;
+		}
+		Object content;
+		try {
+			content = part.getContent();
+		} catch (IOException e) {
+			logger.warn("getStructureReason() - IOException caught reading the message structure", e);
+			return "unreadable structure";
+		}
+		if (!(content instanceof Multipart)) {
+			return null;
+		}
+		Multipart multipart = (Multipart) content;
+		for (int i = 0; i < multipart.getCount(); i++) {
+			String reason = getStructureReason(multipart.getBodyPart(i));
+			if (reason != null) {
+				return reason;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param msg
+	 *            - message
+	 * @return true if the body must be read to classify the message
+	 * @throws MessagingException
+	 */
+	public static boolean isCandidate(Message msg) throws MessagingException {
+		return getCandidateReason(msg) != null;
+	}
+}
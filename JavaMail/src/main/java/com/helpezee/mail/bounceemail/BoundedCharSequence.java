@@ -0,0 +1,142 @@
+package com.helpezee.mail.bounceemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A CharSequence that limits how much work a regular expression can do on
+ * it.
+ * <p>
+ * java.util.regex reads its input through charAt(), one call per character
+ * it looks at, backtracking included. Every call here counts as a step, and
+ * once the step budget is used up, the time budget has passed or the thread
+ * has been interrupted, charAt() throws a BudgetExceededException which ends
+ * the match. Sub sequences share the budget of the sequence they came from.
+ * <p>
+ * Not thread safe, use one instance per match.
+ *
+ * @author JackW
+ */
+public final class BoundedCharSequence implements CharSequence {
+
+	private static final int CHECK_INTERVAL = 4096; // steps between clock reads
+
+	private final CharSequence text;
+	private final int offset;
+	private final int length;
+	private final Budget budget;
+
+	/**
+	 * @param text
+	 *            - the text, not copied
+	 * @param length
+	 *            - number of characters from the start of the text to expose,
+	 *            the rest is not seen by the matcher
+	 * @param maxSteps
+	 *            - maximum number of characters read
+	 * @param maxMillis
+	 *            - maximum time in milliseconds, from now
+	 */
+	public BoundedCharSequence(CharSequence text, int length, long maxSteps, long maxMillis) {
+		this(text, 0, Math.min(length, text.length()), new Budget(maxSteps, maxMillis));
+	}
+
+	private BoundedCharSequence(CharSequence text, int offset, int length, Budget budget) {
+		this.text = text;
+		this.offset = offset;
+		this.length = length;
+		this.budget = budget;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("index: " + index + ", length: " + length);
+		}
+		budget.step();
+		return text.charAt(offset + index);
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("start: " + start + ", end: " + end + ", length: " + length);
+		}
+		return new BoundedCharSequence(text, offset + start, end - start, budget);
+	}
+
+	/**
+	 * @return the characters of this sequence, used by Matcher.group()
+	 */
+	public String toString() {
+		return text.subSequence(offset, offset + length).toString();
+	}
+
+	/**
+	 * @return number of characters read so far
+	 */
+	public long getSteps() {
+		return budget.steps;
+	}
+
+	/**
+	 * @return time since the sequence was created in milliseconds
+	 */
+	public long getElapsedMillis() {
+		return (System.nanoTime() - budget.start) / 1000000L;
+	}
+
+	private static final class Budget {
+		private final long maxSteps;
+		private final long start;
+		private final long maxNanos;
+		private long steps = 0;
+
+		Budget(long maxSteps, long maxMillis) {
+			this.maxSteps = maxSteps;
+			this.start = System.nanoTime();
+			this.maxNanos = maxMillis * 1000000L;
+		}
+
+		void step() {
+			if (++steps > maxSteps) {
+				throw new BudgetExceededException("Step budget of " + maxSteps + " exceeded");
+			}
+			if (steps % CHECK_INTERVAL == 0) {
+				long elapsed = System.nanoTime() - start;
+				if (elapsed > maxNanos) {
+					throw new BudgetExceededException("Time budget of " + maxNanos / 1000000L
+							+ " ms exceeded after " + steps + " steps");
+				}
+				if (Thread.currentThread().isInterrupted()) {
+					throw new BudgetExceededException("Interrupted after " + steps + " steps");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Thrown by charAt() when the budget of the sequence is used up.
+	 */
+	public static final class BudgetExceededException extends RuntimeException {
+		private static final long serialVersionUID = -3178016052263712094L;
+
+		BudgetExceededException(String message) {
+			super(message);
+		}
+	}
+}
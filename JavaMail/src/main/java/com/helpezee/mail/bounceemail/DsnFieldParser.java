@@ -0,0 +1,353 @@
+package com.helpezee.mail.bounceemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the per-recipient fields of a delivery status notification (RFC 3464)
+ * straight from its bytes.
+ * <p>
+ * The text is walked once, line by line. Field names are matched ignoring
+ * case, with or without leading white space, and a line that starts with
+ * white space continues the field above it (header folding). Only the
+ * offsets of the values are kept, Strings are made when a value is asked
+ * for.
+ * <p>
+ * A recipient block ends at an empty line, or where a field it already has
+ * shows up again. Blocks without any of the fields below, such as the
+ * per-message fields at the top of a DSN, are skipped. An MDN
+ * (message/disposition-notification) has the same Final-Recipient and
+ * Original-Recipient fields and can be read the same way.
+ *
+ * @author JackW
+ */
+public final class DsnFieldParser {
+
+	public static final int FINAL_RECIPIENT = 0;
+	public static final int ORIGINAL_RECIPIENT = 1;
+	public static final int ACTION = 2;
+	public static final int STATUS = 3;
+	public static final int DIAGNOSTIC_CODE = 4;
+
+	/** DSN text is ASCII, and UTF-8 in a message/global-delivery-status */
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte[][] FIELD_NAMES = { ascii("final-recipient"), ascii("original-recipient"),
+			ascii("action"), ascii("status"), ascii("diagnostic-code") };
+
+	private DsnFieldParser() {
+		// static only
+	}
+
+	/**
+	 * @param dsn
+	 *            - delivery status text
+	 * @return one entry per recipient block, in the order they appear
+	 */
+	public static List<Recipient> parse(byte[] dsn) {
+		return parse(dsn, 0, dsn.length);
+	}
+
+	/**
+	 * @param dsn
+	 *            - array holding the delivery status text
+	 * @param off
+	 *            - start of the text
+	 * @param len
+	 *            - length of the text
+	 * @return one entry per recipient block, in the order they appear
+	 */
+	public static List<Recipient> parse(byte[] dsn, int off, int len) {
+		List<Recipient> recipients = new ArrayList<Recipient>(2);
+		Recipient current = null;
+		int openField = -1; // field that a folded line would continue
+		int limit = off + len;
+		int pos = off;
+		while (pos < limit) {
+			int eol = lineEnd(dsn, pos, limit);
+			int next = eol < limit ? eol + 1 : limit;
+			if (eol > pos && dsn[eol - 1] == '\r') {
+				eol--;
+			}
+			int p = skipWhiteSpace(dsn, pos, eol);
+			if (p == eol) {
+				// empty line, end of block
+				current = null;
+				openField = -1;
+			} else {
+				int field = fieldAt(dsn, p, eol);
+				if (field >= 0) {
+					if (current == null || current.start[field] >= 0) {
+						current = new Recipient(dsn);
+						recipients.add(current);
+					}
+					int valueStart = skipWhiteSpace(dsn, p + FIELD_NAMES[field].length + 1, eol);
+					current.start[field] = valueStart;
+					current.end[field] = trimEnd(dsn, valueStart, eol);
+					openField = field;
+				} else if (p > pos && openField >= 0) {
+					// folded, the value now runs to the end of this line
+					current.end[openField] = trimEnd(dsn, p, eol);
+				} else {
+					openField = -1;
+				}
+			}
+			pos = next;
+		}
+		return recipients;
+	}
+
+	/*
+	 * index of the known field whose name and colon start at pos, or -1
+	 */
+	private static int fieldAt(byte[] buf, int pos, int end) {
+		for (int f = 0; f < FIELD_NAMES.length; f++) {
+			if (startsWithName(buf, pos, end, FIELD_NAMES[f])) {
+				return f;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the bytes at pos are the header name, in any case,
+	 *         followed by a colon
+	 */
+	static boolean startsWithName(byte[] buf, int pos, int end, byte[] lowerName) {
+		if (end - pos <= lowerName.length || buf[pos + lowerName.length] != ':') {
+			return false;
+		}
+		for (int i = 0; i < lowerName.length; i++) {
+			int c = buf[pos + i];
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			if (c != lowerName[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return index of the next LF at or after pos, or end
+	 */
+	static int lineEnd(byte[] buf, int pos, int end) {
+		while (pos < end && buf[pos] != '\n') {
+			pos++;
+		}
+		return pos;
+	}
+
+	static int skipWhiteSpace(byte[] buf, int pos, int end) {
+		while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t')) {
+			pos++;
+		}
+		return pos;
+	}
+
+	static int trimEnd(byte[] buf, int start, int end) {
+		while (end > start && (buf[end - 1] == ' ' || buf[end - 1] == '\t')) {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * @return the bytes between start and end with the line breaks of folded
+	 *         lines removed
+	 */
+	static String unfold(byte[] buf, int start, int end) {
+		int breaks = 0;
+		for (int i = start; i < end; i++) {
+			if (buf[i] == '\r' || buf[i] == '\n') {
+				breaks++;
+			}
+		}
+		if (breaks == 0) {
+			return new String(buf, start, end - start, UTF_8);
+		}
+		byte[] unfolded = new byte[end - start - breaks];
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			if (buf[i] != '\r' && buf[i] != '\n') {
+				unfolded[n++] = buf[i];
+			}
+		}
+		return new String(unfolded, 0, n, UTF_8).trim();
+	}
+
+	static byte[] ascii(String s) {
+		return s.getBytes(UTF_8);
+	}
+
+	/**
+	 * The fields of one recipient block, as offsets into the DSN text.
+	 */
+	public static final class Recipient {
+		private final byte[] buf;
+		private final int[] start = new int[FIELD_NAMES.length];
+		private final int[] end = new int[FIELD_NAMES.length];
+
+		Recipient(byte[] buf) {
+			this.buf = buf;
+			Arrays.fill(start, -1);
+			Arrays.fill(end, -1);
+		}
+
+		/**
+		 * @param field
+		 *            - FINAL_RECIPIENT, ORIGINAL_RECIPIENT, ACTION, STATUS
+		 *            or DIAGNOSTIC_CODE
+		 * @return true if the block has the field
+		 */
+		public boolean has(int field) {
+			return start[field] >= 0;
+		}
+
+		/**
+		 * @return offset of the value of the field in the DSN text, -1 if the
+		 *         block doesn't have it
+		 */
+		public int getStart(int field) {
+			return start[field];
+		}
+
+		/**
+		 * @return offset after the value of the field, folded lines included,
+		 *         -1 if the block doesn't have it
+		 */
+		public int getEnd(int field) {
+			return end[field];
+		}
+
+		/**
+		 * @return the value of the field, unfolded and trimmed, or null
+		 */
+		public String getValue(int field) {
+			return has(field) ? unfold(buf, start[field], end[field]) : null;
+		}
+
+		/**
+		 * "Final-Recipient" ":" address-type ";" generic-address
+		 *
+		 * @return the address, or null if the field has no address
+		 */
+		public String getFinalRecipient() {
+			return getAddress(FINAL_RECIPIENT);
+		}
+
+		/**
+		 * "Original-Recipient" ":" address-type ";" generic-address
+		 *
+		 * @return the address, or null if the field has no address
+		 */
+		public String getOriginalRecipient() {
+			return getAddress(ORIGINAL_RECIPIENT);
+		}
+
+		/**
+		 * @return failed, delayed, delivered, relayed or expanded, or null
+		 */
+		public String getAction() {
+			return getValue(ACTION);
+		}
+
+		/**
+		 * @return the status code, without the comment that may follow it, or
+		 *         null
+		 */
+		public String getStatus() {
+			if (!has(STATUS)) {
+				return null;
+			}
+			int e = start[STATUS];
+			while (e < end[STATUS] && buf[e] != ' ' && buf[e] != '\t' && buf[e] != '\r' && buf[e] != '\n') {
+				e++;
+			}
+			return new String(buf, start[STATUS], e - start[STATUS], UTF_8);
+		}
+
+		/**
+		 * @return the diagnostic code, folded lines joined, or null
+		 */
+		public String getDiagnosticCode() {
+			return getValue(DIAGNOSTIC_CODE);
+		}
+
+		/*
+		 * first token of the value with an '@' after its first character,
+		 * tokens are separated by white space and ';'
+		 */
+		private String getAddress(int field) {
+			if (!has(field)) {
+				return null;
+			}
+			int i = start[field];
+			int e = end[field];
+			while (i < e) {
+				while (i < e && isDelimiter(buf[i])) {
+					i++;
+				}
+				int tokenStart = i;
+				boolean at = false;
+				while (i < e && !isDelimiter(buf[i])) {
+					if (buf[i] == '@' && i > tokenStart) {
+						at = true;
+					}
+					i++;
+				}
+				if (at) {
+					return new String(buf, tokenStart, i - tokenStart, UTF_8);
+				}
+			}
+			return null;
+		}
+
+		private static boolean isDelimiter(byte b) {
+			return b == ' ' || b == ';' || b == '\t' || b == '\r' || b == '\n';
+		}
+
+		public String toString() {
+			return "Final-Recipient: " + getFinalRecipient() + ", Original-Recipient: " + getOriginalRecipient()
+					+ ", Action: " + getAction() + ", Status: " + getStatus() + ", Diagnostic-Code: "
+					+ getDiagnosticCode();
+		}
+	}
+
+	public static void main(String[] args) {
+		String dsn = "Reporting-MTA: dns; mx.example.com\r\n"
+				+ "Arrival-Date: Mon, 4 May 2009 10:12:01 -0400\r\n"
+				+ "\r\n"
+				+ "Final-Recipient: rfc822; jsmith@example.org\r\n"
+				+ "Action: failed\r\n"
+				+ "Status: 5.1.1 (user unknown)\r\n"
+				+ "Diagnostic-Code: smtp; 550 5.1.1 <jsmith@example.org>:\r\n"
+				+ "    Recipient address rejected: User unknown\r\n"
+				+ "\r\n"
+				+ "Original-Recipient: rfc822;mary@example.net\r\n"
+				+ "final-recipient: RFC822; <mary@mail.example.net>\r\n"
+				+ "action: delayed\r\n"
+				+ "status: 4.2.2\r\n";
+		for (Recipient recipient : parse(dsn.getBytes(UTF_8))) {
+			System.out.println(recipient);
+		}
+	}
+}
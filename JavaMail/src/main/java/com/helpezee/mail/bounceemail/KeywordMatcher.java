@@ -0,0 +1,151 @@
+package com.helpezee.mail.bounceemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Finds which of up to 64 ASCII keywords occur in a text, in one pass and
+ * ignoring ASCII case, the same way a CASE_INSENSITIVE regex does.
+ * <p>
+ * The keywords are compiled into an Aho-Corasick automaton with the failure
+ * links folded into a full transition table, so each character of the text
+ * costs one table lookup. A character outside ASCII can't be part of a
+ * keyword and takes the automaton back to its start.
+ *
+ * @author JackW
+ */
+public final class KeywordMatcher {
+
+	private static final int ALPHABET = 128;
+
+	private final int[][] next; // state x character -> state
+	private final long[] found; // state -> keywords that end here
+	private final long all;
+
+	/**
+	 * @param keywords
+	 *            - ASCII keywords, keyword i sets bit i of the result of
+	 *            match()
+	 */
+	public KeywordMatcher(String... keywords) {
+		if (keywords.length > 64) {
+			throw new IllegalArgumentException("At most 64 keywords are supported");
+		}
+		// trie
+		List<int[]> trie = new ArrayList<int[]>();
+		List<Long> out = new ArrayList<Long>();
+		trie.add(newState());
+		out.add(Long.valueOf(0L));
+		for (int k = 0; k < keywords.length; k++) {
+			String keyword = keywords[k];
+			if (keyword.length() == 0) {
+				throw new IllegalArgumentException("Keyword " + k + " is empty");
+			}
+			int state = 0;
+			for (int i = 0; i < keyword.length(); i++) {
+				int c = fold(keyword.charAt(i));
+				if (c >= ALPHABET) {
+					throw new IllegalArgumentException("Keyword " + k + " is not ASCII: " + keyword);
+				}
+				if (trie.get(state)[c] < 0) {
+					trie.get(state)[c] = trie.size();
+					trie.add(newState());
+					out.add(Long.valueOf(0L));
+				}
+				state = trie.get(state)[c];
+			}
+			out.set(state, Long.valueOf(out.get(state).longValue() | (1L << k)));
+		}
+		next = trie.toArray(new int[trie.size()][]);
+		found = new long[next.length];
+		for (int s = 0; s < found.length; s++) {
+			found[s] = out.get(s).longValue();
+		}
+		// failure links, breadth first, folded into the table
+		int[] fail = new int[next.length];
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (int c = 0; c < ALPHABET; c++) {
+			if (next[0][c] < 0) {
+				next[0][c] = 0;
+			} else {
+				fail[next[0][c]] = 0;
+				queue.add(Integer.valueOf(next[0][c]));
+			}
+		}
+		while (!queue.isEmpty()) {
+			int s = queue.removeFirst().intValue();
+			found[s] |= found[fail[s]];
+			for (int c = 0; c < ALPHABET; c++) {
+				int t = next[s][c];
+				if (t < 0) {
+					next[s][c] = next[fail[s]][c];
+				} else {
+					fail[t] = next[fail[s]][c];
+					queue.add(Integer.valueOf(t));
+				}
+			}
+		}
+		all = keywords.length == 64 ? -1L : (1L << keywords.length) - 1;
+	}
+
+	private static int[] newState() {
+		int[] state = new int[ALPHABET];
+		Arrays.fill(state, -1);
+		return state;
+	}
+
+	private static int fold(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	/**
+	 * @param text
+	 *            - text to search
+	 * @return bit i is set if keyword i occurs in the text
+	 */
+	public long match(CharSequence text) {
+		return match(text, 0, text.length());
+	}
+
+	/**
+	 * @param text
+	 *            - text to search
+	 * @param start
+	 *            - index of the first character to search
+	 * @param end
+	 *            - index after the last character to search
+	 * @return bit i is set if keyword i occurs between start and end
+	 */
+	public long match(CharSequence text, int start, int end) {
+		long result = 0L;
+		int state = 0;
+		for (int i = start; i < end; i++) {
+			int c = fold(text.charAt(i));
+			state = c < ALPHABET ? next[state][c] : 0;
+			if (found[state] != 0L) {
+				result |= found[state];
+				if (result == all) {
+					break; // nothing more to find
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,239 @@
+package com.helpezee.mail.bounceemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+
+import com.helpezee.mail.bean.MsgHeader;
+
+/**
+ * Finds the To, Subject and Message-ID headers of the original message
+ * returned with a bounce, in a message/rfc822 or text/rfc822-headers part.
+ * <p>
+ * The part bytes are walked once, line by line, the same way DsnFieldParser
+ * does: names are matched ignoring case, folded lines are joined to their
+ * header, and only the offsets of the values are kept until a value is asked
+ * for. The first occurrence of each header is used. The scan stops once all
+ * three are found, or at the first line without a colon after 100 lines, as
+ * the text is most likely past the headers by then.
+ *
+ * @author JackW
+ */
+public final class Rfc822HeaderExtractor {
+
+	public static final int TO = 0;
+	public static final int SUBJECT = 1;
+	public static final int MESSAGE_ID = 2;
+
+	/** lines scanned before an empty or non-header line ends the scan */
+	static final int MAX_HEADER_LINES = 100;
+
+	private static final String[] HEADER_NAMES = { "To", "Subject", "Message-ID" };
+	private static final byte[][] LOWER_NAMES = { DsnFieldParser.ascii("to"), DsnFieldParser.ascii("subject"),
+			DsnFieldParser.ascii("message-id") };
+	private static final int ALL = (1 << HEADER_NAMES.length) - 1;
+
+	private final byte[] buf;
+	private final int[] start = { -1, -1, -1 };
+	private final int[] end = { -1, -1, -1 };
+	private final String[] values = new String[HEADER_NAMES.length];
+	private int found = 0; // bit per header
+
+	private Rfc822HeaderExtractor(byte[] buf) {
+		this.buf = buf;
+	}
+
+	/**
+	 * @param text
+	 *            - the original message, or its headers
+	 * @return the headers found
+	 */
+	public static Rfc822HeaderExtractor extract(byte[] text) {
+		return extract(text, 0, text.length);
+	}
+
+	/**
+	 * @param text
+	 *            - array holding the original message, or its headers
+	 * @param off
+	 *            - start of the message
+	 * @param len
+	 *            - length of the message
+	 * @return the headers found
+	 */
+	public static Rfc822HeaderExtractor extract(byte[] text, int off, int len) {
+		Rfc822HeaderExtractor headers = new Rfc822HeaderExtractor(text);
+		int openField = -1; // header that a folded line would continue
+		int lineCount = 0;
+		int limit = off + len;
+		int pos = off;
+		while (pos < limit) {
+			int eol = DsnFieldParser.lineEnd(text, pos, limit);
+			int next = eol < limit ? eol + 1 : limit;
+			if (eol > pos && text[eol - 1] == '\r') {
+				eol--;
+			}
+			int p = DsnFieldParser.skipWhiteSpace(text, pos, eol);
+			boolean folded = p > pos && p < eol && openField >= 0;
+			if (headers.found == ALL && !folded) {
+				break; // the last header found is complete
+			}
+			int field = p < eol ? headers.fieldAt(p, eol) : -1;
+			if (field >= 0) {
+				if ((headers.found & (1 << field)) == 0) {
+					int valueStart = DsnFieldParser.skipWhiteSpace(text, p + LOWER_NAMES[field].length + 1, eol);
+					headers.start[field] = valueStart;
+					headers.end[field] = DsnFieldParser.trimEnd(text, valueStart, eol);
+					headers.found |= 1 << field;
+					openField = field;
+				} else {
+					openField = -1;
+				}
+			} else if (folded) {
+				headers.end[openField] = DsnFieldParser.trimEnd(text, p, eol);
+			} else {
+				openField = -1;
+			}
+			if (++lineCount > MAX_HEADER_LINES && indexOf(text, pos, eol, (byte) ':') < 0) {
+				break; // check if it's a header after 100 lines
+			}
+			pos = next;
+		}
+		return headers;
+	}
+
+	/**
+	 * @param headers
+	 *            - headers already parsed from the part, see
+	 *            BodypartBean.getHeaders()
+	 * @return the headers found
+	 */
+	public static Rfc822HeaderExtractor extract(List<MsgHeader> headers) {
+		Rfc822HeaderExtractor result = new Rfc822HeaderExtractor(null);
+		for (int i = 0; i < headers.size() && result.found != ALL; i++) {
+			MsgHeader header = headers.get(i);
+			for (int f = 0; f < HEADER_NAMES.length; f++) {
+				if ((result.found & (1 << f)) == 0 && HEADER_NAMES[f].equalsIgnoreCase(header.getName())) {
+					result.values[f] = header.getValue() == null ? "" : unfold(header.getValue());
+					result.found |= 1 << f;
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * header values keep the line breaks of folded lines
+	 */
+	private static String unfold(String value) {
+		if (value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+			return value.trim();
+		}
+		StringBuilder sb = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c != '\r' && c != '\n') {
+				sb.append(c);
+			}
+		}
+		return sb.toString().trim();
+	}
+
+	private int fieldAt(int pos, int eol) {
+		for (int f = 0; f < LOWER_NAMES.length; f++) {
+			if (DsnFieldParser.startsWithName(buf, pos, eol, LOWER_NAMES[f])) {
+				return f;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOf(byte[] buf, int pos, int end, byte b) {
+		for (int i = pos; i < end; i++) {
+			if (buf[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param field
+	 *            - TO, SUBJECT or MESSAGE_ID
+	 * @return true if the header was found
+	 */
+	public boolean has(int field) {
+		return (found & (1 << field)) != 0;
+	}
+
+	/**
+	 * @return true if To, Subject and Message-ID were all found
+	 */
+	public boolean hasAll() {
+		return found == ALL;
+	}
+
+	/**
+	 * @return offset of the value in the part bytes, -1 if the header was not
+	 *         found or came from a header list
+	 */
+	public int getStart(int field) {
+		return start[field];
+	}
+
+	/**
+	 * @return offset after the value, folded lines included, -1 if the
+	 *         header was not found or came from a header list
+	 */
+	public int getEnd(int field) {
+		return end[field];
+	}
+
+	/**
+	 * @return the value of the header, unfolded and trimmed, or null
+	 */
+	public String getValue(int field) {
+		if (!has(field)) {
+			return null;
+		}
+		if (values[field] == null) {
+			values[field] = DsnFieldParser.unfold(buf, start[field], end[field]);
+		}
+		return values[field];
+	}
+
+	/**
+	 * @return the original recipient, or null
+	 */
+	public String getTo() {
+		return getValue(TO);
+	}
+
+	/**
+	 * @return the original subject, or null
+	 */
+	public String getSubject() {
+		return getValue(SUBJECT);
+	}
+
+	/**
+	 * @return the original SMTP message id, or null
+	 */
+	public String getMessageId() {
+		return getValue(MESSAGE_ID);
+	}
+}
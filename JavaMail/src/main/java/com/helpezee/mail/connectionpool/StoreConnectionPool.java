@@ -0,0 +1,587 @@
+package com.helpezee.mail.connectionpool;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A keyed pool of connected Stores and their open Folders.
+ * <p>
+ * Stores are keyed by protocol, host, port, user and a digest of the
+ * password, folders by store, folder name and open mode. A borrower with
+ * other credentials never gets a store logged in with the old ones. A
+ * borrowed store or folder that has been idle for more than the validation
+ * interval is checked with a NOOP before it is handed out; stores idle for
+ * more than the maximum idle time are closed by a background evictor. The
+ * number of connections to a host is limited, a borrower waits for a free
+ * slot up to the borrow timeout.
+ * <p>
+ * Borrowed objects must be handed back with returnStore()/returnFolder(), or
+ * with invalidateStore()/invalidateFolder() after a connection failure.
+ */
+public final class StoreConnectionPool {
+
+	public static Logger logger = LoggerFactory.getLogger(StoreConnectionPool.class);
+
+	public static final int DEFAULT_MAX_PER_HOST = 8;
+	public static final long DEFAULT_MAX_IDLE_TIME = 5 * 60 * 1000; // 5 minutes
+	public static final long DEFAULT_VALIDATION_INTERVAL = 30 * 1000; // 30 seconds
+	public static final long DEFAULT_BORROW_TIMEOUT = 2 * 60 * 1000; // 2 minutes
+	private static final long EVICTION_FREQ = 60; // in seconds
+
+	private static StoreConnectionPool connectionPool = null;
+
+	private final Map<StoreKey, LinkedList<PooledStore>> idleStores = new HashMap<StoreKey, LinkedList<PooledStore>>();
+	private final Map<Store, PooledStore> activeStores = new IdentityHashMap<Store, PooledStore>();
+	private final Map<Folder, PooledStore> activeFolders = new IdentityHashMap<Folder, PooledStore>();
+	private final Map<String, Integer> hostCounts = new HashMap<String, Integer>();
+
+	private volatile int maxPerHost = DEFAULT_MAX_PER_HOST;
+	private volatile long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+	private volatile long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+	private volatile long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+
+	private final ScheduledExecutorService evictor;
+
+	public static synchronized StoreConnectionPool getInstance() {
+		if (connectionPool == null) {
+			connectionPool = new StoreConnectionPool();
+		}
+		return connectionPool;
+	}
+
+	/**
+	 * create a pool, stand-alone pools are mostly useful for testing. Use
+	 * getInstance() to share connections.
+	 */
+	public StoreConnectionPool() {
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "StoreConnectionPool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle();
+			}
+		}, EVICTION_FREQ, EVICTION_FREQ, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * borrow a connected store. An idle store of the same key is reused if
+	 * it's still alive, otherwise a new store is created from the session and
+	 * connected.
+	 *
+	 * @param session
+	 *            - used to create a new store
+	 * @param protocol
+	 *            - "imap", "imaps", "pop3", ...
+	 * @param host
+	 * @param port
+	 *            - -1 for the default port
+	 * @param user
+	 * @param password
+	 * @return a connected store
+	 * @throws MessagingException
+	 *             if the store can't be connected, or the host has no free
+	 *             connection slot within the borrow timeout
+	 */
+	public Store borrowStore(Session session, String protocol, String host, int port, String user, String password)
+			throws MessagingException {
+		StoreKey key = new StoreKey(protocol, host, port, user, password);
+		while (true) {
+			PooledStore pooled = takeIdleOrReserve(key);
+			if (pooled == null) {
+				// a slot has been reserved, connect outside of the lock
+				Store store = null;
+				try {
+					store = session.getStore(protocol);
+					store.connect(host, port, user, password);
+				} catch (MessagingException e) {
+					releaseSlot(key);
+					throw e;
+				} catch (RuntimeException e) {
+					releaseSlot(key);
+					throw e;
+				}
+				pooled = new PooledStore(key, store);
+				synchronized (this) {
+					activeStores.put(store, pooled);
+				}
+				logger.debug("borrowStore() - new connection to " + key);
+				return store;
+			}
+			if (validate(pooled)) {
+				return pooled.store;
+			}
+			// dead connection, close it and try the next one
+			synchronized (this) {
+				activeStores.remove(pooled.store);
+			}
+			destroy(pooled);
+		}
+	}
+
+	/**
+	 * hand a store back to the pool. Its folders that are still borrowed are
+	 * returned as well.
+	 *
+	 * @param store
+	 */
+	public void returnStore(Store store) {
+		if (store == null) {
+			return;
+		}
+		PooledStore pooled;
+		synchronized (this) {
+			pooled = activeStores.remove(store);
+			if (pooled != null) {
+				for (Iterator<Map.Entry<Folder, PooledStore>> it = activeFolders.entrySet().iterator(); it
+						.hasNext();) {
+					Map.Entry<Folder, PooledStore> entry = it.next();
+					if (entry.getValue() == pooled) {
+						pooled.addIdleFolder(entry.getKey());
+						it.remove();
+					}
+				}
+				// dead connections are weeded out by the next borrower
+				pooled.touch();
+				LinkedList<PooledStore> idle = idleStores.get(pooled.key);
+				if (idle == null) {
+					idle = new LinkedList<PooledStore>();
+					idleStores.put(pooled.key, idle);
+				}
+				idle.addFirst(pooled);
+				notifyAll();
+				return;
+			}
+		}
+		closeQuietly(store);
+	}
+
+	/**
+	 * close a store that failed, and release its connection slot.
+	 *
+	 * @param store
+	 */
+	public void invalidateStore(Store store) {
+		if (store == null) {
+			return;
+		}
+		PooledStore pooled;
+		synchronized (this) {
+			pooled = activeStores.remove(store);
+			if (pooled != null) {
+				for (Iterator<PooledStore> it = activeFolders.values().iterator(); it.hasNext();) {
+					if (it.next() == pooled) {
+						it.remove();
+					}
+				}
+			}
+		}
+		if (pooled != null) {
+			destroy(pooled);
+		} else {
+			closeQuietly(store);
+		}
+	}
+
+	/**
+	 * borrow an open folder of a borrowed store.
+	 *
+	 * @param store
+	 *            - a store borrowed from this pool
+	 * @param folderName
+	 * @param mode
+	 *            - Folder.READ_ONLY or Folder.READ_WRITE
+	 * @return an open folder
+	 * @throws MessagingException
+	 */
+	public Folder borrowFolder(Store store, String folderName, int mode) throws MessagingException {
+		PooledStore pooled;
+		Folder folder;
+		synchronized (this) {
+			pooled = activeStores.get(store);
+			if (pooled == null) {
+				throw new IllegalStateException("Store was not borrowed from this pool");
+			}
+			folder = pooled.takeIdleFolder(folderName, mode);
+		}
+		if (folder != null && !validate(pooled, folder)) {
+			closeQuietly(folder);
+			folder = null;
+		}
+		if (folder == null) {
+			folder = store.getFolder(folderName);
+			if (folder == null || !folder.exists()) {
+				throw new MessagingException("Invalid folder " + folderName);
+			}
+			folder.open(mode);
+			logger.debug("borrowFolder() - opened " + folderName + " of " + pooled.key);
+		}
+		synchronized (this) {
+			activeFolders.put(folder, pooled);
+		}
+		return folder;
+	}
+
+	/**
+	 * hand an open folder back to the pool.
+	 *
+	 * @param folder
+	 */
+	public void returnFolder(Folder folder) {
+		if (folder == null) {
+			return;
+		}
+		synchronized (this) {
+			PooledStore pooled = activeFolders.remove(folder);
+			if (pooled != null && folder.isOpen()) {
+				pooled.addIdleFolder(folder);
+				return;
+			}
+		}
+		closeQuietly(folder);
+	}
+
+	/**
+	 * close a folder that failed.
+	 *
+	 * @param folder
+	 */
+	public void invalidateFolder(Folder folder) {
+		if (folder == null) {
+			return;
+		}
+		synchronized (this) {
+			activeFolders.remove(folder);
+		}
+		closeQuietly(folder);
+	}
+
+	/**
+	 * close the stores that have been idle longer than the maximum idle time.
+	 *
+	 * @return number of stores closed
+	 */
+	public int evictIdle() {
+		List<PooledStore> evicted = new ArrayList<PooledStore>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			for (Iterator<LinkedList<PooledStore>> it = idleStores.values().iterator(); it.hasNext();) {
+				LinkedList<PooledStore> idle = it.next();
+				for (Iterator<PooledStore> it2 = idle.iterator(); it2.hasNext();) {
+					PooledStore pooled = it2.next();
+					if (now - pooled.lastUsed > maxIdleTime) {
+						it2.remove();
+						evicted.add(pooled);
+					}
+				}
+				if (idle.isEmpty()) {
+					it.remove();
+				}
+			}
+		}
+		for (PooledStore pooled : evicted) {
+			destroy(pooled);
+		}
+		if (!evicted.isEmpty()) {
+			logger.debug("evictIdle() - " + evicted.size() + " idle connections closed");
+		}
+		return evicted.size();
+	}
+
+	/**
+	 * close all idle stores. Borrowed stores are closed when they are
+	 * returned.
+	 */
+	public void closeIdle() {
+		List<PooledStore> idle = new ArrayList<PooledStore>();
+		synchronized (this) {
+			for (LinkedList<PooledStore> list : idleStores.values()) {
+				idle.addAll(list);
+			}
+			idleStores.clear();
+		}
+		for (PooledStore pooled : idle) {
+			destroy(pooled);
+		}
+	}
+
+	public synchronized int getIdleCount() {
+		int count = 0;
+		for (LinkedList<PooledStore> list : idleStores.values()) {
+			count += list.size();
+		}
+		return count;
+	}
+
+	public synchronized int getActiveCount() {
+		return activeStores.size();
+	}
+
+	public int getMaxPerHost() {
+		return maxPerHost;
+	}
+
+	public void setMaxPerHost(int maxPerHost) {
+		this.maxPerHost = maxPerHost;
+	}
+
+	public long getMaxIdleTime() {
+		return maxIdleTime;
+	}
+
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	public long getValidationInterval() {
+		return validationInterval;
+	}
+
+	public void setValidationInterval(long validationInterval) {
+		this.validationInterval = validationInterval;
+	}
+
+	public long getBorrowTimeout() {
+		return borrowTimeout;
+	}
+
+	public void setBorrowTimeout(long borrowTimeout) {
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	/*
+	 * take an idle store of the key, or reserve a connection slot for a new
+	 * one (returns null). Waits if the host has no free slot.
+	 */
+	private synchronized PooledStore takeIdleOrReserve(StoreKey key) throws MessagingException {
+		long deadline = System.currentTimeMillis() + borrowTimeout;
+		while (true) {
+			LinkedList<PooledStore> idle = idleStores.get(key);
+			if (idle != null && !idle.isEmpty()) {
+				PooledStore pooled = idle.removeFirst();
+				if (idle.isEmpty()) {
+					idleStores.remove(key);
+				}
+				activeStores.put(pooled.store, pooled);
+				return pooled;
+			}
+			if (getHostCount(key.getHost()) < maxPerHost) {
+				hostCounts.put(key.getHost(), getHostCount(key.getHost()) + 1);
+				return null;
+			}
+			if (evictIdleOfHost(key.getHost())) {
+				return null; // the slot of the evicted store, count unchanged
+			}
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				throw new MessagingException("No free connection to " + key.getHost() + " within " + borrowTimeout
+						+ " ms, " + maxPerHost + " connections in use");
+			}
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MessagingException("Interrupted while waiting for a connection to " + key.getHost());
+			}
+		}
+	}
+
+	/*
+	 * make room on a host at its limit by closing an idle store of another
+	 * user on the same host. Called with the lock held.
+	 */
+	private boolean evictIdleOfHost(String host) {
+		for (Iterator<LinkedList<PooledStore>> it = idleStores.values().iterator(); it.hasNext();) {
+			LinkedList<PooledStore> idle = it.next();
+			if (!idle.isEmpty() && idle.getFirst().key.getHost().equals(host)) {
+				final PooledStore pooled = idle.removeLast();
+				if (idle.isEmpty()) {
+					it.remove();
+				}
+				// the slot is handed over to the caller, close asynchronously
+				evictor.execute(new Runnable() {
+					public void run() {
+						pooled.closeAll();
+					}
+				});
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int getHostCount(String host) {
+		Integer count = hostCounts.get(host);
+		return count == null ? 0 : count.intValue();
+	}
+
+	private synchronized void releaseSlot(StoreKey key) {
+		int count = getHostCount(key.getHost()) - 1;
+		if (count > 0) {
+			hostCounts.put(key.getHost(), count);
+		} else {
+			hostCounts.remove(key.getHost());
+		}
+		notifyAll();
+	}
+
+	/*
+	 * check the connection with a NOOP if it has been idle for a while.
+	 * Store.isConnected() issues a NOOP for IMAP and POP3.
+	 */
+	private boolean validate(PooledStore pooled) {
+		if (System.currentTimeMillis() - pooled.lastValidated < validationInterval) {
+			return true;
+		}
+		try {
+			if (pooled.store.isConnected()) {
+				pooled.lastValidated = System.currentTimeMillis();
+				return true;
+			}
+		} catch (RuntimeException e) {
+			logger.warn("validate() - health check of " + pooled.key + " failed", e);
+		}
+		logger.debug("validate() - connection to " + pooled.key + " is dead, discarded");
+		return false;
+	}
+
+	/*
+	 * an open IMAP folder issues a NOOP from getMessageCount()
+	 */
+	private boolean validate(PooledStore pooled, Folder folder) {
+		if (!folder.isOpen()) {
+			return false;
+		}
+		if (System.currentTimeMillis() - pooled.lastValidated < validationInterval) {
+			return true;
+		}
+		try {
+			folder.getMessageCount();
+			if (folder.isOpen()) {
+				pooled.lastValidated = System.currentTimeMillis();
+				return true;
+			}
+			return false;
+		} catch (MessagingException e) {
+			logger.debug("validate() - folder " + folder.getFullName() + " of " + pooled.key + " is dead, discarded");
+			return false;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	private void destroy(PooledStore pooled) {
+		pooled.closeAll();
+		releaseSlot(pooled.key);
+	}
+
+	private static void closeQuietly(Store store) {
+		try {
+			store.close();
+		} catch (Exception e) {
+			logger.debug("closeQuietly() - Exception caught closing store: " + e);
+		}
+	}
+
+	private static void closeQuietly(Folder folder) {
+		try {
+			if (folder.isOpen()) {
+				folder.close(false);
+			}
+		} catch (Exception e) {
+			logger.debug("closeQuietly() - Exception caught closing folder: " + e);
+		}
+	}
+
+	/*
+	 * a pooled store with its idle open folders
+	 */
+	private static final class PooledStore {
+		final StoreKey key;
+		final Store store;
+		final Map<String, LinkedList<Folder>> idleFolders = new HashMap<String, LinkedList<Folder>>();
+		long lastUsed;
+		long lastValidated;
+
+		PooledStore(StoreKey key, Store store) {
+			this.key = key;
+			this.store = store;
+			this.lastUsed = this.lastValidated = System.currentTimeMillis();
+		}
+
+		void touch() {
+			lastUsed = System.currentTimeMillis();
+		}
+
+		Folder takeIdleFolder(String folderName, int mode) {
+			LinkedList<Folder> folders = idleFolders.get(folderKey(folderName, mode));
+			if (folders == null || folders.isEmpty()) {
+				return null;
+			}
+			return folders.removeFirst();
+		}
+
+		void addIdleFolder(Folder folder) {
+			if (!folder.isOpen()) {
+				return;
+			}
+			String fkey = folderKey(folder.getFullName(), folder.getMode());
+			LinkedList<Folder> folders = idleFolders.get(fkey);
+			if (folders == null) {
+				folders = new LinkedList<Folder>();
+				idleFolders.put(fkey, folders);
+			}
+			folders.addFirst(folder);
+		}
+
+		void closeAll() {
+			for (LinkedList<Folder> folders : idleFolders.values()) {
+				for (Folder folder : folders) {
+					closeQuietly(folder);
+				}
+			}
+			idleFolders.clear();
+			closeQuietly(store);
+		}
+
+		private static String folderKey(String folderName, int mode) {
+			return folderName + "|" + mode;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.helpezee.mail.connectionpool;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Identifies pooled Stores: protocol, host, port, user and password. Host
+ * names are compared case insensitive. Only a SHA-256 digest of the password
+ * is kept, so a store logged in with a password that has since changed is
+ * not handed to a borrower with the new one.
+ */
+public final class StoreKey {
+	private final String protocol;
+	private final String host;
+	private final int port;
+	private final String user;
+	private final byte[] credentials; // digest of the password
+
+	public StoreKey(String protocol, String host, int port, String user) {
+		this(protocol, host, port, user, null);
+	}
+
+	public StoreKey(String protocol, String host, int port, String user, String password) {
+		this.protocol = protocol == null ? "" : protocol.toLowerCase();
+		this.host = host == null ? "" : host.toLowerCase();
+		this.port = port;
+		this.user = user == null ? "" : user;
+		this.credentials = digest(password);
+	}
+
+	private static byte[] digest(String password) {
+		if (password == null) {
+			return new byte[0];
+		}
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every JVM has SHA-256
+		}
+	}
+
+	public String getProtocol() {
+		return protocol;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof StoreKey)) {
+			return false;
+		}
+		StoreKey other = (StoreKey) obj;
+		return port == other.port && protocol.equals(other.protocol) && host.equals(other.host)
+				&& user.equals(other.user) && MessageDigest.isEqual(credentials, other.credentials);
+	}
+
+	public int hashCode() {
+		int result = protocol.hashCode();
+		result = 31 * result + host.hashCode();
+		result = 31 * result + port;
+		result = 31 * result + user.hashCode();
+		result = 31 * result + Arrays.hashCode(credentials);
+		return result;
+	}
+
+	public String toString() {
+		return protocol + "://" + user + "@" + host + ":" + port;
+	}
+}
@@ -16,27 +16,49 @@ package com.helpezee.mail.identifybouncedemail;
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
-
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.FetchProfile;
 import javax.mail.Folder;
+import javax.mail.FolderClosedException;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.StoreClosedException;
+import javax.mail.UIDFolder;
 import javax.mail.event.ConnectionEvent;
 import javax.mail.event.ConnectionListener;
 import javax.mail.event.MessageCountAdapter;
 import javax.mail.event.MessageCountEvent;
+import javax.mail.event.MessageCountListener;
 import javax.mail.event.StoreEvent;
 import javax.mail.event.StoreListener;
 
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helpezee.mail.connectionpool.StoreConnectionPool;
 import com.helpezee.mail.processor.MailProcessor;
 import com.helpezee.mail.processor.Mailbox;
+import com.helpezee.mail.processor.MessagePipeline;
+import com.helpezee.mail.processor.ProcessedMessageMover;
 
 /**
  * This class provides methods to read e-mails from a mailbox.
@@ -52,21 +74,56 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 	private final Session session;
 	private final Mailbox mailbox;
 	private final MailProcessor processor;
+	private final UidCheckpointStore checkpointStore;
 
 	private Store store = null;
 	private Folder folder = null;
 	private Folder processedFolder = null;
+	private volatile ProcessedMessageMover messageMover = null;
+	private MessageCountListener countListener = null;
+
+	private final MessagePipeline pipeline;
+	private final Object windowLock = new Object();
+	private long nextWindowSeq = 0;
+	private long nextCheckpointSeq = 0;
+	private int windowFailures = 0;
+	// sequence number to highest UID of windows done out of order, null if failed
+	private final TreeMap<Long, Long> completedWindows = new TreeMap<Long, Long>();
+
+	// servers may end an IDLE after 29 minutes of inactivity (RFC 2177)
+	private static final long IDLE_KEEPALIVE = 25 * 60 * 1000; // 25 minutes
+	private long idleKeepAlive = IDLE_KEEPALIVE;
+	private volatile boolean pushRunning = false;
+	private volatile IMAPFolder idleFolder = null;
+	private Thread idleThread = null;
+	private ScheduledExecutorService keepAliveTimer = null;
 
 	private static final int MAX_WAIT = 120 * 1000; // up to two minutes
 
 	private final int msgsPerRead;
 	private final int pollingFreq;
-	private int messagesProcessed = 0;
+	private final AtomicInteger messagesProcessed = new AtomicInteger(0);
 
 	private static final int[] RetryFreqs = { 5, 10, 10, 20, 20, 20, 30, 30, 30, 30, 60, 60, 60, 60, 60 }; // in
 																											// seconds
 	private static final int RETRY_FREQ = 120; // in seconds
 
+	/*
+	 * items prefetched for every read window: the envelope, flags and
+	 * structure, plus the full header block, which covers Received,
+	 * Delivered-To, Return-Path, X-Mailer and X-Priority read by
+	 * MessageBeanUtil.processEnvelope() as well as its getAllHeaders() scan.
+	 */
+	private static final FetchProfile WINDOW_PROFILE = new FetchProfile();
+	static {
+		WINDOW_PROFILE.add(FetchProfile.Item.ENVELOPE);
+		WINDOW_PROFILE.add(FetchProfile.Item.FLAGS);
+		WINDOW_PROFILE.add(FetchProfile.Item.CONTENT_INFO);
+		WINDOW_PROFILE.add(FetchProfile.Item.SIZE);
+		WINDOW_PROFILE.add(UIDFolder.FetchProfileItem.UID);
+		WINDOW_PROFILE.add(IMAPFolder.FetchProfileItem.HEADERS);
+	}
+
 	public static void main(String[] args) {
 		int port = 993;
 		String protocol = "imap";
@@ -80,7 +137,16 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 		String proccessedFolderName = "TEST";
 		Mailbox vo = new Mailbox("abc@gmail.com", "password", "imap.gmail.com", port, protocol, folderName,
 				messagesPerRead, useSsl, maxRetries, minimumWait, isExchange, proccessedFolderName);
-		BouncedMailIndentifier reader = new BouncedMailIndentifier(vo);
+		final BouncedMailIndentifier reader = new BouncedMailIndentifier(vo);
+		if (args.length > 0 && "push".equalsIgnoreCase(args[0])) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					reader.stopPushMode();
+				}
+			});
+			reader.startPushMode();
+			return;
+		}
 		try {
 			reader.readMail();
 		} catch (Exception e) {
@@ -89,13 +155,28 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 	}
 
 	/**
-	 * create a MailReader instance
+	 * create a MailReader instance that keeps its UID checkpoints in the
+	 * default checkpoint store.
 	 * 
 	 * @param mbox
 	 *            - mailbox properties
 	 */
 	public BouncedMailIndentifier(Mailbox mbox) {
+		this(mbox, UidCheckpointStore.getInstance());
+	}
+
+	/**
+	 * create a MailReader instance
+	 * 
+	 * @param mbox
+	 *            - mailbox properties
+	 * @param checkpointStore
+	 *            - where to keep the highest processed UID, null to always
+	 *            read the whole folder
+	 */
+	public BouncedMailIndentifier(Mailbox mbox, UidCheckpointStore checkpointStore) {
 		this.mailbox = mbox;
+		this.checkpointStore = checkpointStore;
 
 		// number of e-mails (="msgsPerPass") to read per cycle
 		int msgs_per_read = mbox.getMessagesPerRead();
@@ -136,6 +217,29 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 		m_props.setProperty("mail.imap.socketFactory.port", mbox.getPort() + "");
 		session = Session.getInstance(m_props);
 		processor = new MailProcessor(mbox);
+		pipeline = new MessagePipeline("MailProcessor-" + mbox.getUserId(), mbox.getProcessingThreads(),
+				mbox.getProcessingQueueSize());
+	}
+
+	/**
+	 * @return the mailbox this reader is bound to
+	 */
+	public Mailbox getMailbox() {
+		return mailbox;
+	}
+
+	/**
+	 * @return number of milliseconds to wait between reads
+	 */
+	public int getPollingFreq() {
+		return pollingFreq;
+	}
+
+	/**
+	 * @return number of messages processed since this reader was created
+	 */
+	public int getMessagesProcessed() {
+		return messagesProcessed.get();
 	}
 
 	/**
@@ -145,60 +249,308 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 	 * @throws IOException
 	 */
 	void readMail() throws MessagingException, IOException {
-		session.setDebug(false); // DON'T CHANGE THIS
-		String protocol = mailbox.getProtocol();
-		if (!"imap".equalsIgnoreCase(protocol)) {
-			throw new IllegalArgumentException("Invalid protocol " + protocol);
+		checkProtocol();
+		StoreConnectionPool pool = StoreConnectionPool.getInstance();
+		boolean failed = true;
+		boolean interrupted = false;
+		try {
+			openMailbox(pool);
+			readFromImap();
+			failed = false;
+		} catch (InterruptedException e) {
+			logger.info("readMail() - interrupted, exiting...");
+			interrupted = true;
+			failed = false;
+		} finally {
+			closeMailbox(pool, failed);
 		}
-		if (store == null) {
-			try {
-				// Get a Store object
-				store = session.getStore(protocol);
-				store.addConnectionListener(this);
-				store.addStoreListener(this);
-			} catch (NoSuchProviderException pe) {
-				logger.error("NoSuchProviderException caught during session.getStore()" , pe);
-				throw pe;
-			}
+		if (interrupted) {
+			// set again only now, closeMailbox() has to wait for the workers
+			Thread.currentThread().interrupt();
+			return;
 		}
-		try {
-			connect(store, 0, mailbox.getMaxRetries()); // could fail due to
-														// authentication error
-			folder = getFolder(store, 0, 1); // retry once on folder
-			processedFolder = store.getFolder(mailbox.getProccessedFolderName());
-			// reset debug mode
-			session.setDebug(debugSession);
-			if ("imap".equalsIgnoreCase(protocol)) {
-				// only IMAP support MessageCountListener
-				final String _folder = mailbox.getFolderName();
-				// Add messageCountListener to listen to new messages from IMAP
-				// server
-				addMsgCountListener(folder, _folder);
+
+		logger.debug("MailReader ended");
+	}
+
+	/**
+	 * start reading the mailbox in push mode. A dedicated thread reads the
+	 * messages that arrived since the last checkpoint, then waits in IMAP IDLE
+	 * (RFC 2177) so new messages are processed as soon as the server reports
+	 * them. The IDLE command is re-issued every "idleKeepAlive" milliseconds,
+	 * before the server times it out, or sooner when processed messages are
+	 * due to be moved. A dropped connection is re-established with the same
+	 * backoff used by connect().
+	 */
+	public synchronized void startPushMode() {
+		checkProtocol();
+		if (pushRunning) {
+			return;
+		}
+		pushRunning = true;
+		keepAliveTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "IdleKeepAlive-" + mailbox.getUserId());
+				t.setDaemon(true);
+				return t;
 			}
-			readFromImap();
+		});
+		keepAliveTimer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				abortIdle();
+			}
+		}, idleKeepAlive, idleKeepAlive, TimeUnit.MILLISECONDS);
+		// idle() only returns on new mail or the keep-alive, wake it up when
+		// processed messages are due to be moved
+		long moveCheck = Math.max(1000L, (mailbox.getMoveMaxDelay() > 0 ? mailbox.getMoveMaxDelay()
+				: ProcessedMessageMover.DEFAULT_MAX_DELAY) / 4);
+		keepAliveTimer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				ProcessedMessageMover mover = messageMover;
+				if (mover != null && mover.isFlushDue()) {
+					abortIdle();
+				}
+			}
+		}, moveCheck, moveCheck, TimeUnit.MILLISECONDS);
+		idleThread = new Thread(new Runnable() {
+			public void run() {
+				idleMail();
+			}
+		}, "IdleReader-" + mailbox.getUserId());
+		idleThread.start();
+		logger.info("Push mode started for " + mailbox.getUserId() + "'s " + mailbox.getFolderName());
+	}
 
+	/**
+	 * stop the push mode and wait for the IDLE thread to release its
+	 * connection.
+	 */
+	public synchronized void stopPushMode() {
+		if (!pushRunning) {
+			return;
+		}
+		pushRunning = false;
+		keepAliveTimer.shutdownNow();
+		keepAliveTimer = null;
+		abortIdle();
+		idleThread.interrupt(); // in case it is waiting to reconnect
+		try {
+			idleThread.join(MAX_WAIT);
 		} catch (InterruptedException e) {
-			logger.error("InterruptedException caught, exiting..." , e);
-		} finally {
+			logger.error("InterruptedException caught", e);
+			Thread.currentThread().interrupt();
+		}
+		if (idleThread.isAlive()) {
+			logger.warn("IDLE thread of " + mailbox.getUserId() + " did not stop within " + MAX_WAIT + " ms");
+		}
+		idleThread = null;
+		logger.info("Push mode stopped for " + mailbox.getUserId() + "'s " + mailbox.getFolderName());
+	}
+
+	/**
+	 * stop the push mode, if running, and release the processing threads.
+	 */
+	public void shutdown() {
+		stopPushMode();
+		pipeline.shutdown();
+		processor.shutdown();
+	}
+
+	/**
+	 * @return true if the reader is running in push mode
+	 */
+	public boolean isPushMode() {
+		return pushRunning;
+	}
+
+	/**
+	 * @param idleKeepAlive
+	 *            - milliseconds before an IDLE command is re-issued, must be
+	 *            shorter than the server's inactivity timeout. Takes effect
+	 *            the next time push mode is started.
+	 */
+	public void setIdleKeepAlive(long idleKeepAlive) {
+		this.idleKeepAlive = idleKeepAlive <= 0 ? IDLE_KEEPALIVE : idleKeepAlive;
+	}
+
+	public long getIdleKeepAlive() {
+		return idleKeepAlive;
+	}
+
+	/*
+	 * body of the IDLE thread: connect, catch up, then IDLE until stopped.
+	 * New messages are delivered to the MessageCountListener added by
+	 * openMailbox(), which hands them over to the MailProcessor.
+	 */
+	private void idleMail() {
+		StoreConnectionPool pool = StoreConnectionPool.getInstance();
+		int retries = 0;
+		while (pushRunning) {
+			boolean failed = true;
 			try {
-				if (folder != null && folder.isOpen()) {
-					folder.close(false);
+				openMailbox(pool);
+				// pick up the messages that arrived while we were away
+				readFromImap();
+				retries = 0;
+				boolean idleSupported = ((IMAPStore) store).hasCapability("IDLE");
+				if (!idleSupported) {
+					logger.warn(mailbox.getHost() + " doesn't support IDLE, polling every " + pollingFreq + " ms");
 				}
-				if (processedFolder != null && processedFolder.isOpen()) {
-					processedFolder.close(false);
+				idleFolder = (IMAPFolder) folder;
+				while (pushRunning && folder.isOpen()) {
+					if (idleSupported) {
+						// returns when a response arrives or the IDLE is aborted
+						idleFolder.idle();
+					} else {
+						ProcessedMessageMover mover = messageMover;
+						long sleepFor = pollingFreq;
+						if (mover != null) {
+							// wake up in time to move the processed messages
+							sleepFor = Math.min(sleepFor, Math.max(1000L, mover.getMaxDelay()));
+						}
+						Thread.sleep(sleepFor);
+						folder.getMessageCount(); // NOOP, reports new messages
+					}
+					if (messageMover != null) {
+						messageMover.flushIfDue();
+					}
+				}
+				failed = !folder.isOpen();
+			} catch (FolderClosedException e) {
+				logger.warn("Folder " + mailbox.getFolderName() + " was closed by the server, reconnecting...");
+			} catch (StoreClosedException e) {
+				logger.warn("Connection to " + mailbox.getHost() + " was dropped, reconnecting...");
+			} catch (MessagingException e) {
+				logger.error("MessagingException caught in push mode", e);
+			} catch (IOException e) {
+				logger.error("IOException caught in push mode", e);
+			} catch (InterruptedException e) {
+				logger.debug("IDLE thread interrupted");
+				failed = false;
+			} finally {
+				idleFolder = null;
+				closeMailbox(pool, failed);
+			}
+			if (failed && pushRunning) {
+				int sleepFor = retries < RetryFreqs.length ? RetryFreqs[retries] : RETRY_FREQ;
+				retries++;
+				logger.debug("Push mode reconnect(=" + retries + ") in " + sleepFor + " seconds");
+				try {
+					Thread.sleep(sleepFor * 1000);
+				} catch (InterruptedException e) {
+					logger.debug("IDLE thread interrupted");
 				}
-				store.close();
-			} catch (Exception e) {
-				logger.error("Exception caught" , e);
 			}
 		}
+		logger.debug("IDLE thread ended");
+	}
 
-		logger.debug("MailReader ended");
+	/*
+	 * send a NOOP through the folder. Any command issued on the folder ends
+	 * the pending IDLE first, so the IDLE thread returns from idle() and
+	 * starts a fresh IDLE, well before the server's timeout.
+	 */
+	private void abortIdle() {
+		IMAPFolder imapFolder = idleFolder;
+		if (imapFolder == null || !imapFolder.isOpen()) {
+			return;
+		}
+		try {
+			imapFolder.doCommand(new IMAPFolder.ProtocolCommand() {
+				public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+					protocol.noop();
+					return null;
+				}
+			});
+		} catch (MessagingException e) {
+			// the IDLE thread will find out and reconnect
+			logger.warn("NOOP failed on " + mailbox.getFolderName() + ": " + e.getMessage());
+		}
+	}
+
+	private void checkProtocol() {
+		String protocol = mailbox.getProtocol();
+		if (!"imap".equalsIgnoreCase(protocol)) {
+			throw new IllegalArgumentException("Invalid protocol " + protocol);
+		}
+	}
+
+	/*
+	 * borrow the store and the folder from the pool and start listening to
+	 * new messages.
+	 */
+	private void openMailbox(StoreConnectionPool pool) throws MessagingException, InterruptedException {
+		session.setDebug(false); // DON'T CHANGE THIS
+		// could fail due to authentication error
+		store = connect(pool, 0, mailbox.getMaxRetries());
+		store.addConnectionListener(this);
+		store.addStoreListener(this);
+		folder = getFolder(pool, store, 0, 1); // retry once on folder
+		processedFolder = store.getFolder(mailbox.getProccessedFolderName());
+		// reset debug mode
+		session.setDebug(debugSession);
+		// only IMAP support MessageCountListener
+		// Add messageCountListener to listen to new messages from IMAP server
+		resetWindows();
+		countListener = addMsgCountListener(folder, mailbox.getFolderName());
+	}
+
+	/*
+	 * move what is left to the processed folder, stop listening, and hand the
+	 * connection back to the pool, or discard it if it failed.
+	 */
+	private void closeMailbox(StoreConnectionPool pool, boolean failed) {
+		if (folder != null && countListener != null) {
+			folder.removeMessageCountListener(countListener);
+		}
+		countListener = null;
+		boolean idle = false;
+		try {
+			// let the workers finish with the folder before it goes back
+			pipeline.awaitIdle();
+			idle = true;
+		} catch (InterruptedException e) {
+			logger.error("InterruptedException caught while waiting for the pipeline", e);
+			Thread.currentThread().interrupt();
+			// workers may still be using the folder, don't hand it to anyone else
+			failed = true;
+		}
+		try {
+			if (idle && messageMover != null && folder != null && folder.isOpen()) {
+				messageMover.flush();
+			}
+		} catch (Exception e) {
+			logger.error("Exception caught while moving processed messages", e);
+		}
+		messageMover = null;
+		processor.setMessageMover(null);
+		if (store != null) {
+			store.removeConnectionListener(this);
+			store.removeStoreListener(this);
+		}
+		if (failed) {
+			pool.invalidateFolder(folder);
+			pool.invalidateStore(store);
+		} else {
+			pool.returnFolder(folder);
+			pool.returnStore(store);
+		}
+		folder = null;
+		processedFolder = null;
+		store = null;
 	}
 
 	private void readFromImap() throws MessagingException, InterruptedException, IOException {
 		// boolean keepRunning = true;
-		folder.open(Folder.READ_WRITE);
+		// the folder is borrowed open in READ_WRITE mode
+		if (processedFolder != null && processedFolder.exists()) {
+			messageMover = new ProcessedMessageMover(folder, processedFolder, mailbox.getMoveBatchSize(),
+					mailbox.getMoveMaxDelay());
+			processor.setMessageMover(messageMover);
+		} else {
+			logger.warn("Processed folder " + mailbox.getProccessedFolderName()
+					+ " doesn't exist, processed messages are left in " + mailbox.getFolderName());
+		}
 		/*
 		 * fix for some IMAP servers: some IMAP servers wouldn't pick up the
 		 * existing messages, the MessageCountListener may not be implemented
@@ -208,16 +560,176 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 			logger.debug(mailbox.getUserId() + "'s " + mailbox.getFolderName() + " has " + folder.getMessageCount()
 					+ " messages.");
 			Date start_tms = new Date();
-			Message msgs[] = folder.getMessages();
-			execute(msgs, folder, processedFolder);
-			folder.expunge(); // remove messages marked as DELETED
-			logger.debug(msgs.length + " messages have been expunged from imap mailbox.");
+			Message msgs[] = getUnprocessedMessages();
+			executeInWindows(msgs);
+			pipeline.awaitIdle();
+			int failures;
+			synchronized (windowLock) {
+				failures = windowFailures;
+			}
+			if (failures > 0) {
+				throw new MessagingException(failures + " read windows of " + mailbox.getFolderName() + " failed");
+			}
+			if (messageMover != null) {
+				messageMover.flush(); // move the remainder of the last batch
+			}
 			long proc_time = new Date().getTime() - start_tms.getTime();
 			logger.debug(msgs.length + " messages read, time taken: " + proc_time);
 		}
 		/* end of the fix */
 	}
 
+	/*
+	 * process messages in windows of "msgsPerRead" messages. Each window is
+	 * prefetched with a single FETCH command before it is handed over to the
+	 * processor, instead of one round trip per header and per part.
+	 */
+	private void executeInWindows(Message[] msgs) throws InterruptedException {
+		final Folder _folder = folder;
+		final Folder _processedFolder = processedFolder;
+		for (int i = 0; i < msgs.length; i += msgsPerRead) {
+			final Message[] window = Arrays.copyOfRange(msgs, i, Math.min(i + msgsPerRead, msgs.length));
+			final long seq = registerWindow();
+			// blocks while the workers are behind
+			pipeline.submit(new Runnable() {
+				public void run() {
+					processWindow(seq, window, _folder, _processedFolder);
+				}
+			});
+		}
+	}
+
+	/*
+	 * fetch and process one window, runs on a pipeline worker.
+	 */
+	private void processWindow(long seq, Message[] window, Folder folder, Folder processedFolder) {
+		long highestUid = -1;
+		boolean failed = true;
+		try {
+			folder.fetch(window, WINDOW_PROFILE);
+			// get the UIDs before the messages are moved out of the folder
+			highestUid = getHighestUid(folder, window);
+			execute(window, folder, processedFolder);
+			messagesProcessed.addAndGet(window.length);
+			failed = false;
+		} catch (MessagingException e) {
+			logger.error("MessagingException caught while processing " + window.length + " messages", e);
+		} catch (IOException e) {
+			logger.error("IOException caught while processing " + window.length + " messages", e);
+		} finally {
+			windowDone(seq, highestUid, failed, folder);
+		}
+	}
+
+	private long registerWindow() {
+		synchronized (windowLock) {
+			return nextWindowSeq++;
+		}
+	}
+
+	/*
+	 * windows may finish out of order. The checkpoint only moves past a
+	 * window once it and every window before it have been processed, and
+	 * never past a failed one, so the failed messages are read again on the
+	 * next connect.
+	 */
+	private void windowDone(long seq, long highestUid, boolean failed, Folder folder) {
+		long checkpointUid = -1;
+		synchronized (windowLock) {
+			if (failed) {
+				windowFailures++;
+			}
+			completedWindows.put(seq, failed ? null : highestUid);
+			while (completedWindows.containsKey(nextCheckpointSeq)) {
+				Long uid = completedWindows.get(nextCheckpointSeq);
+				if (uid == null) {
+					break; // failed window
+				}
+				completedWindows.remove(nextCheckpointSeq++);
+				checkpointUid = Math.max(checkpointUid, uid);
+			}
+		}
+		try {
+			updateCheckpoint(folder, checkpointUid);
+		} catch (MessagingException e) {
+			logger.error("MessagingException caught while saving the UID checkpoint", e);
+		}
+	}
+
+	private void resetWindows() {
+		synchronized (windowLock) {
+			nextWindowSeq = 0;
+			nextCheckpointSeq = 0;
+			windowFailures = 0;
+			completedWindows.clear();
+		}
+	}
+
+	/*
+	 * retrieve the messages that arrived after the last checkpoint. The whole
+	 * folder is returned when there is no checkpoint, or when the folder's
+	 * UIDVALIDITY has changed since the checkpoint was taken.
+	 */
+	private Message[] getUnprocessedMessages() throws MessagingException {
+		if (checkpointStore == null || !(folder instanceof UIDFolder)) {
+			return folder.getMessages();
+		}
+		UIDFolder uidFolder = (UIDFolder) folder;
+		UidCheckpointStore.Checkpoint checkpoint = checkpointStore.get(mailbox);
+		long uidValidity = uidFolder.getUIDValidity();
+		if (checkpoint == null) {
+			logger.debug("No UID checkpoint found for " + mailbox.getFolderName() + ", reading all messages");
+			return folder.getMessages();
+		}
+		if (checkpoint.getUidValidity() != uidValidity) {
+			logger.warn("UIDVALIDITY of " + mailbox.getFolderName() + " changed from " + checkpoint.getUidValidity()
+					+ " to " + uidValidity + ", reading all messages");
+			return folder.getMessages();
+		}
+		long lastUid = checkpoint.getLastUid();
+		Message[] msgs = uidFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+		/*
+		 * "n:*" always includes the message with the highest UID, even when n
+		 * is greater than that UID. Drop the ones processed already.
+		 */
+		List<Message> newMsgs = new ArrayList<Message>(msgs.length);
+		for (int i = 0; i < msgs.length; i++) {
+			if (msgs[i] != null && uidFolder.getUID(msgs[i]) > lastUid) {
+				newMsgs.add(msgs[i]);
+			}
+		}
+		logger.debug(newMsgs.size() + " messages found after " + checkpoint);
+		return newMsgs.toArray(new Message[newMsgs.size()]);
+	}
+
+	/*
+	 * get the highest UID of the messages, the UIDs were prefetched with the
+	 * window.
+	 */
+	private long getHighestUid(Folder folder, Message[] msgs) throws MessagingException {
+		long highestUid = -1;
+		if (!(folder instanceof UIDFolder) || msgs == null) {
+			return highestUid;
+		}
+		UIDFolder uidFolder = (UIDFolder) folder;
+		for (int i = 0; i < msgs.length; i++) {
+			if (msgs[i] != null && !msgs[i].isExpunged()) {
+				highestUid = Math.max(highestUid, uidFolder.getUID(msgs[i]));
+			}
+		}
+		return highestUid;
+	}
+
+	/*
+	 * record the highest UID of the processed messages.
+	 */
+	private void updateCheckpoint(Folder folder, long highestUid) throws MessagingException {
+		if (checkpointStore == null || !(folder instanceof UIDFolder) || highestUid <= 0) {
+			return;
+		}
+		checkpointStore.put(mailbox, ((UIDFolder) folder).getUIDValidity(), highestUid);
+	}
+
 	/**
 	 * Add messageCountListener to listen to new messages for IMAP.
 	 * 
@@ -226,8 +738,8 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 	 * @param _folder
 	 *            - folder name
 	 */
-	private void addMsgCountListener(final Folder folder, final String _folder) {
-		folder.addMessageCountListener(new MessageCountAdapter() {
+	private MessageCountListener addMsgCountListener(final Folder folder, final String _folder) {
+		MessageCountListener listener = new MessageCountAdapter() {
 			// private final Logger logger =
 			// Logger.getLogger(MessageCountAdapter.class);
 			public void messagesAdded(MessageCountEvent ev) {
@@ -235,22 +747,19 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 				logger.debug("Got " + msgs.length + " new messages from " + _folder);
 				Date start_tms = new Date();
 				try {
-					execute(msgs, folder, processedFolder);
-					folder.expunge(); // remove messages marked as DELETED
-					logger.debug(msgs.length + " messages have been expunged from imap mailbox.");
-					messagesProcessed += msgs.length;
-				} catch (MessagingException ex) {
-					logger.error("MessagingException caught  " , ex);
-					throw new RuntimeException(ex.getMessage());
-				} catch (IOException ex) {
-					logger.error("IOException caught  " , ex);
-					throw new RuntimeException(ex.getMessage());
+					// only queue them, the pipeline workers do the processing
+					executeInWindows(msgs);
+				} catch (InterruptedException ex) {
+					logger.error("InterruptedException caught, " + msgs.length + " messages not queued", ex);
+					Thread.currentThread().interrupt();
 				} finally {
 					long proc_time = new Date().getTime() - start_tms.getTime();
-					logger.debug(msgs.length + " messages processed, time taken: " + proc_time);
+					logger.debug(msgs.length + " messages queued, time taken: " + proc_time);
 				}
 			}
-		}); // end of IMAP folder.addMessageCountListener
+		};
+		folder.addMessageCountListener(listener);
+		return listener; // end of IMAP folder.addMessageCountListener
 	}
 
 	/*
@@ -305,32 +814,31 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 	/* end of the implementation */
 
 	/**
-	 * connect to Store with retry logic.
+	 * borrow a connected Store from the pool with retry logic.
 	 * 
-	 * @param store
-	 *            Store object
+	 * @param pool
+	 *            connection pool
 	 * @param retries
 	 *            number of retries performed
 	 * @param maxRetries
 	 *            number of retries to be performed before giving up
+	 * @return a connected Store
 	 * @throws MessagingException
 	 *             when retries reached the maxRetries
 	 * @throws InterruptedException
 	 */
-	void connect(Store store, int retries, int maxRetries) throws MessagingException, InterruptedException {
+	Store connect(StoreConnectionPool pool, int retries, int maxRetries)
+			throws MessagingException, InterruptedException {
 		int portnbr = mailbox.getPort();
 		// -1 to use the default port
 		logger.debug("Port used: " + portnbr);
-		if (retries > 0) { // retrying, close store first
-			try {
-				store.close();
-			} catch (MessagingException e) {
-				logger.error("MessagingException caught during retry on store.close()" , e);
-			}
-		}
 		try {
-			// connect
-			store.connect(mailbox.getHost(), portnbr, mailbox.getUserId(), mailbox.getUserPswd());
+			// connect, or reuse a pooled connection
+			return pool.borrowStore(session, mailbox.getProtocol(), mailbox.getHost(), portnbr, mailbox.getUserId(),
+					mailbox.getUserPswd());
+		} catch (NoSuchProviderException pe) {
+			logger.error("NoSuchProviderException caught during session.getStore()" , pe);
+			throw pe;
 		} catch (MessagingException me) {
 			if (retries < maxRetries || maxRetries < 0) {
 				int sleepFor;
@@ -347,7 +855,7 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 					logger.error("InterruptedException caught" , e);
 					throw e;
 				}
-				connect(store, ++retries, maxRetries);
+				return connect(pool, ++retries, maxRetries);
 			} else {
 				logger.error("Exception caught during store.connect, all retries failed...");
 				throw me;
@@ -356,27 +864,26 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 	}
 
 	/**
-	 * retrieve Folder with retry logic.
+	 * borrow an open Folder from the pool with retry logic.
 	 * 
+	 * @param pool
+	 *            connection pool
 	 * @param store
-	 *            Store object
+	 *            Store object borrowed from the pool
 	 * @param retries
 	 *            number of retries performed
 	 * @param maxRetries
 	 *            number of retries to be performed before giving up
-	 * @return Folder instance
+	 * @return Folder instance, opened READ_WRITE
 	 * @throws MessagingException
 	 * @throws InterruptedException
 	 */
-	Folder getFolder(Store store, int retries, int maxRetries) throws MessagingException, InterruptedException {
+	Folder getFolder(StoreConnectionPool pool, Store store, int retries, int maxRetries)
+			throws MessagingException, InterruptedException {
 		try {
 			// Open a Folder
 			// folder = store.getDefaultFolder();
-			folder = store.getFolder(mailbox.getFolderName());
-
-			if (folder == null || !folder.exists()) {
-				throw new MessagingException("Invalid folder " + mailbox.getFolderName());
-			}
+			folder = pool.borrowFolder(store, mailbox.getFolderName(), Folder.READ_WRITE);
 		} catch (MessagingException me) {
 			if (retries < maxRetries || maxRetries < 0) {
 				int sleepFor;
@@ -393,7 +900,7 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 					logger.error("InterruptedException caught" , e);
 					throw e;
 				}
-				return getFolder(store, ++retries, maxRetries);
+				return getFolder(pool, store, ++retries, maxRetries);
 			} else {
 				logger.error("Exception caught during store.getFolder, all retries failed");
 				throw me;
@@ -401,4 +908,4 @@ public class BouncedMailIndentifier implements ConnectionListener, StoreListener
 		}
 		return folder;
 	}
-}
\ No newline at end of file
+}
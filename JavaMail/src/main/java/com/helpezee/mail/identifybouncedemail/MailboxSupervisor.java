@@ -0,0 +1,334 @@
+package com.helpezee.mail.identifybouncedemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helpezee.mail.bean.PartStorage;
+import com.helpezee.mail.processor.Mailbox;
+
+/**
+ * Runs the connect/read/process cycle of many mailboxes concurrently.
+ * <p>
+ * Every mailbox gets its own BouncedMailIndentifier. A read cycle is a single
+ * task on a bounded scheduled pool; when the cycle ends the mailbox is
+ * rescheduled after its polling frequency (or a retry delay after a failure).
+ * A slow or failing server therefore only holds one pool thread at a time and
+ * never delays the cycles of the other mailboxes.
+ */
+public class MailboxSupervisor {
+
+	public static Logger logger = LoggerFactory.getLogger(MailboxSupervisor.class);
+
+	private static final int[] RetryFreqs = { 5, 10, 10, 20, 20, 20, 30, 30, 30, 30, 60, 60, 60, 60, 60 }; // in
+																											// seconds
+	private static final int RETRY_FREQ = 120; // in seconds
+	private static final int REPORT_FREQ = 60; // in seconds
+	private static final int MAX_STOP_WAIT = 30; // in seconds
+	private static final long SPILL_FILE_MIN_AGE = 24L * 60 * 60 * 1000; // in milliseconds
+
+	private final List<MailboxWorker> workers = new ArrayList<MailboxWorker>();
+	private final ScheduledExecutorService executor;
+	private final ScheduledExecutorService reporter;
+
+	private volatile boolean running = false;
+	private long startTime = 0L;
+	private long lastReportTime = 0L;
+	private long lastReportCount = 0L;
+
+	public static void main(String[] args) {
+		List<Mailbox> mailboxes = new ArrayList<Mailbox>();
+		// Make sure the processed folders are created in the mailboxes before
+		// testing this functionality
+		mailboxes.add(new Mailbox("abc@gmail.com", "password", "imap.gmail.com", 993, "imap", "INBOX", 10, true, 1, 5,
+				false, "TEST"));
+		mailboxes.add(new Mailbox("xyz@gmail.com", "password", "imap.gmail.com", 993, "imap", "INBOX", 10, true, 1, 5,
+				false, "TEST"));
+		final MailboxSupervisor supervisor = new MailboxSupervisor(mailboxes, 4);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				supervisor.stop();
+			}
+		});
+		supervisor.start();
+	}
+
+	/**
+	 * create a supervisor for a list of mailboxes
+	 *
+	 * @param mailboxes
+	 *            - mailbox properties
+	 * @param maxThreads
+	 *            - upper limit of mailboxes being read at the same time
+	 */
+	public MailboxSupervisor(List<Mailbox> mailboxes, int maxThreads) {
+		if (mailboxes == null || mailboxes.isEmpty()) {
+			throw new IllegalArgumentException("No mailbox to supervise");
+		}
+		for (Mailbox mailbox : mailboxes) {
+			workers.add(new MailboxWorker(new BouncedMailIndentifier(mailbox)));
+		}
+		int threads = Math.max(1, Math.min(maxThreads, mailboxes.size()));
+		executor = Executors.newScheduledThreadPool(threads, new NamedThreadFactory("MailboxSupervisor-reader"));
+		reporter = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("MailboxSupervisor-reporter"));
+		logger.debug("Supervising " + workers.size() + " mailboxes with " + threads + " threads");
+	}
+
+	/**
+	 * schedule the first read cycle of every mailbox and start reporting
+	 * throughput.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		// spilled parts of a previous run that was killed
+		PartStorage.sweep(SPILL_FILE_MIN_AGE);
+		startTime = lastReportTime = System.currentTimeMillis();
+		for (MailboxWorker worker : workers) {
+			executor.execute(worker);
+		}
+		reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				report();
+			}
+		}, REPORT_FREQ, REPORT_FREQ, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * stop scheduling read cycles and wait for the running ones to finish.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		reporter.shutdownNow();
+		executor.shutdownNow();
+		try {
+			if (!executor.awaitTermination(MAX_STOP_WAIT, TimeUnit.SECONDS)) {
+				logger.warn("Some mailbox readers did not stop within " + MAX_STOP_WAIT + " seconds");
+			}
+		} catch (InterruptedException e) {
+			logger.error("InterruptedException caught", e);
+			Thread.currentThread().interrupt();
+		}
+		for (MailboxWorker worker : workers) {
+			worker.reader.shutdown();
+		}
+		report();
+	}
+
+	/**
+	 * @return total number of messages processed by all mailboxes
+	 */
+	public long getMessagesProcessed() {
+		long total = 0;
+		for (MailboxWorker worker : workers) {
+			total += worker.reader.getMessagesProcessed();
+		}
+		return total;
+	}
+
+	/**
+	 * @return average number of messages processed per second since start
+	 */
+	public double getThroughput() {
+		long elapsed = System.currentTimeMillis() - startTime;
+		if (startTime == 0L || elapsed <= 0) {
+			return 0D;
+		}
+		return getMessagesProcessed() * 1000D / elapsed;
+	}
+
+	/**
+	 * @return statistics of each supervised mailbox
+	 */
+	public List<MailboxStats> getMailboxStats() {
+		List<MailboxStats> stats = new ArrayList<MailboxStats>();
+		for (MailboxWorker worker : workers) {
+			stats.add(worker.stats);
+		}
+		return Collections.unmodifiableList(stats);
+	}
+
+	/**
+	 * log the aggregate throughput, and the mailboxes that are failing.
+	 */
+	synchronized void report() {
+		long now = System.currentTimeMillis();
+		long count = getMessagesProcessed();
+		long interval = now - lastReportTime;
+		double recentRate = interval > 0 ? (count - lastReportCount) * 1000D / interval : 0D;
+		lastReportTime = now;
+		lastReportCount = count;
+		logger.info("Mailboxes: " + workers.size() + ", messages processed: " + count + ", msgs/sec (overall): "
+				+ String.format("%.2f", getThroughput()) + ", msgs/sec (last " + (interval / 1000) + "s): "
+				+ String.format("%.2f", recentRate));
+		for (MailboxWorker worker : workers) {
+			MailboxStats stats = worker.stats;
+			if (stats.getConsecutiveFailures() > 0) {
+				logger.warn(stats.toString());
+			}
+		}
+	}
+
+	/*
+	 * one read cycle of a mailbox, reschedules itself when done.
+	 */
+	private final class MailboxWorker implements Runnable {
+		final BouncedMailIndentifier reader;
+		final MailboxStats stats;
+
+		MailboxWorker(BouncedMailIndentifier reader) {
+			this.reader = reader;
+			this.stats = new MailboxStats(reader.getMailbox());
+		}
+
+		public void run() {
+			if (!running) {
+				return;
+			}
+			long delay = reader.getPollingFreq();
+			long start_tms = System.currentTimeMillis();
+			int before = reader.getMessagesProcessed();
+			try {
+				reader.readMail();
+				if (!Thread.currentThread().isInterrupted()) {
+					stats.cycleSucceeded();
+				} // else abandoned by stop(), neither a success nor a failure
+			} catch (Exception e) {
+				// isolate the failure to this mailbox
+				int failures = stats.cycleFailed(e);
+				int sleepFor = failures <= RetryFreqs.length ? RetryFreqs[failures - 1] : RETRY_FREQ;
+				delay = sleepFor * 1000L;
+				logger.error("Read cycle failed for " + stats.getMailboxName() + ", retry(=" + failures + ") in "
+						+ sleepFor + " seconds", e);
+			} finally {
+				stats.addMessages(reader.getMessagesProcessed() - before);
+				stats.addReadTime(System.currentTimeMillis() - start_tms);
+			}
+			if (running && !Thread.currentThread().isInterrupted()) {
+				try {
+					executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+				} catch (java.util.concurrent.RejectedExecutionException e) {
+					// supervisor is shutting down
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read statistics of a supervised mailbox.
+	 */
+	public static final class MailboxStats {
+		private final String mailboxName;
+		private final AtomicLong cycles = new AtomicLong(0);
+		private final AtomicLong failures = new AtomicLong(0);
+		private final AtomicLong messages = new AtomicLong(0);
+		private final AtomicLong readTime = new AtomicLong(0);
+		private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+		private volatile String lastError = null;
+
+		MailboxStats(Mailbox mailbox) {
+			this.mailboxName = mailbox.getUserId() + "@" + mailbox.getHost() + "/" + mailbox.getFolderName();
+		}
+
+		void cycleSucceeded() {
+			cycles.incrementAndGet();
+			consecutiveFailures.set(0);
+		}
+
+		int cycleFailed(Exception e) {
+			cycles.incrementAndGet();
+			failures.incrementAndGet();
+			lastError = e.toString();
+			return consecutiveFailures.incrementAndGet();
+		}
+
+		void addMessages(int count) {
+			messages.addAndGet(count);
+		}
+
+		void addReadTime(long millis) {
+			readTime.addAndGet(millis);
+		}
+
+		public String getMailboxName() {
+			return mailboxName;
+		}
+
+		public long getCycles() {
+			return cycles.get();
+		}
+
+		public long getFailures() {
+			return failures.get();
+		}
+
+		public int getConsecutiveFailures() {
+			return consecutiveFailures.get();
+		}
+
+		public long getMessages() {
+			return messages.get();
+		}
+
+		public long getReadTime() {
+			return readTime.get();
+		}
+
+		public String getLastError() {
+			return lastError;
+		}
+
+		public String toString() {
+			return mailboxName + ": cycles=" + getCycles() + ", failures=" + getFailures() + ", consecutive failures="
+					+ getConsecutiveFailures() + ", messages=" + getMessages() + ", read time=" + getReadTime()
+					+ (lastError == null ? "" : ", last error=" + lastError);
+		}
+	}
+
+	/*
+	 * name the pool threads so the log shows which pool a line came from.
+	 */
+	private static final class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(false);
+			return t;
+		}
+	}
+}
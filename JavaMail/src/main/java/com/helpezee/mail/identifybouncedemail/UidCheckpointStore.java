@@ -0,0 +1,222 @@
+package com.helpezee.mail.identifybouncedemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helpezee.mail.processor.Mailbox;
+
+/**
+ * Persists the IMAP UIDVALIDITY and the highest processed UID of every
+ * mailbox folder to a local properties file, so a restarted reader only
+ * fetches the messages that arrived after the last checkpoint.
+ * <p>
+ * The file is rewritten through a temporary file and a rename, so a crash
+ * during a save never leaves a truncated checkpoint behind.
+ */
+public final class UidCheckpointStore {
+
+	public static Logger logger = LoggerFactory.getLogger(UidCheckpointStore.class);
+
+	public static final String CHECKPOINT_FILE_PROPERTY = "mail.checkpoint.file";
+	static final String DEFAULT_CHECKPOINT_FILE = "checkpoint/uid-checkpoint.properties";
+
+	private static final String UIDVALIDITY_SUFFIX = ".uidvalidity";
+	private static final String LASTUID_SUFFIX = ".lastuid";
+
+	private static UidCheckpointStore checkpointStore = null;
+
+	private final File file;
+	private final Properties checkpoints = new Properties();
+
+	/**
+	 * @return the store backed by the file named by system property
+	 *         "mail.checkpoint.file", or checkpoint/uid-checkpoint.properties
+	 */
+	public static synchronized UidCheckpointStore getInstance() {
+		if (checkpointStore == null) {
+			String fileName = System.getProperty(CHECKPOINT_FILE_PROPERTY, DEFAULT_CHECKPOINT_FILE);
+			checkpointStore = new UidCheckpointStore(new File(fileName));
+		}
+		return checkpointStore;
+	}
+
+	/**
+	 * create a store backed by the given file, existing checkpoints are loaded
+	 * from the file if it exists.
+	 *
+	 * @param file
+	 *            - checkpoint file
+	 */
+	public UidCheckpointStore(File file) {
+		this.file = file;
+		load();
+	}
+
+	/**
+	 * get the checkpoint of a mailbox folder
+	 *
+	 * @param mailbox
+	 *            - mailbox properties
+	 * @return the checkpoint, or null if the folder has never been read
+	 */
+	public synchronized Checkpoint get(Mailbox mailbox) {
+		String key = getKey(mailbox);
+		String uidValidity = checkpoints.getProperty(key + UIDVALIDITY_SUFFIX);
+		String lastUid = checkpoints.getProperty(key + LASTUID_SUFFIX);
+		if (uidValidity == null || lastUid == null) {
+			return null;
+		}
+		try {
+			return new Checkpoint(Long.parseLong(uidValidity), Long.parseLong(lastUid));
+		} catch (NumberFormatException e) {
+			logger.warn("get() - invalid checkpoint for " + key + ", ignored: " + uidValidity + "/" + lastUid);
+			return null;
+		}
+	}
+
+	/**
+	 * save the checkpoint of a mailbox folder. The highest UID never goes
+	 * backwards within the same UIDVALIDITY.
+	 *
+	 * @param mailbox
+	 *            - mailbox properties
+	 * @param uidValidity
+	 *            - UIDVALIDITY of the folder
+	 * @param lastUid
+	 *            - highest UID processed
+	 */
+	public synchronized void put(Mailbox mailbox, long uidValidity, long lastUid) {
+		Checkpoint current = get(mailbox);
+		if (current != null && current.getUidValidity() == uidValidity && current.getLastUid() >= lastUid) {
+			return;
+		}
+		String key = getKey(mailbox);
+		checkpoints.setProperty(key + UIDVALIDITY_SUFFIX, String.valueOf(uidValidity));
+		checkpoints.setProperty(key + LASTUID_SUFFIX, String.valueOf(lastUid));
+		save();
+	}
+
+	/**
+	 * remove the checkpoint of a mailbox folder, the next read will start
+	 * from the first message.
+	 *
+	 * @param mailbox
+	 *            - mailbox properties
+	 */
+	public synchronized void remove(Mailbox mailbox) {
+		String key = getKey(mailbox);
+		checkpoints.remove(key + UIDVALIDITY_SUFFIX);
+		checkpoints.remove(key + LASTUID_SUFFIX);
+		save();
+	}
+
+	private String getKey(Mailbox mailbox) {
+		// properties keys can't contain spaces, colons or equal signs
+		String key = mailbox.getUserId() + "@" + mailbox.getHost() + ":" + mailbox.getPort() + "/"
+				+ mailbox.getFolderName();
+		return key.replaceAll("[\\s:=]", "_");
+	}
+
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			checkpoints.load(is);
+			logger.debug("load() - " + checkpoints.size() / 2 + " checkpoints loaded from " + file);
+		} catch (IOException e) {
+			logger.error("IOException caught during loading " + file + ", starting without checkpoints", e);
+			checkpoints.clear();
+		} finally {
+			closeQuietly(is);
+		}
+	}
+
+	private void save() {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.exists() && !dir.mkdirs()) {
+			logger.error("save() - failed to create directory " + dir);
+			return;
+		}
+		File tmpFile = new File(dir, file.getName() + ".tmp");
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(tmpFile);
+			checkpoints.store(os, "IMAP UID checkpoints");
+			os.close();
+			os = null;
+			try {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			logger.error("IOException caught during saving " + file, e);
+		} finally {
+			closeQuietly(os);
+		}
+	}
+
+	private static void closeQuietly(java.io.Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * UIDVALIDITY and highest processed UID of a folder.
+	 */
+	public static final class Checkpoint {
+		private final long uidValidity;
+		private final long lastUid;
+
+		Checkpoint(long uidValidity, long lastUid) {
+			this.uidValidity = uidValidity;
+			this.lastUid = lastUid;
+		}
+
+		public long getUidValidity() {
+			return uidValidity;
+		}
+
+		public long getLastUid() {
+			return lastUid;
+		}
+
+		public String toString() {
+			return "UIDVALIDITY=" + uidValidity + ", last UID=" + lastUid;
+		}
+	}
+}
@@ -21,9 +21,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-import javax.mail.Flags;
 import javax.mail.Folder;
+import javax.mail.FolderClosedException;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Part;
@@ -31,9 +35,13 @@ import javax.mail.Part;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helpezee.mail.bean.ImapReportFetcher;
 import com.helpezee.mail.bean.MessageBean;
 import com.helpezee.mail.bean.MessageBeanUtil;
+import com.helpezee.mail.bean.MimeParseOptions;
 import com.helpezee.mail.bounceemail.BounceFinder;
+import com.helpezee.mail.bounceemail.BounceHeaderClassifier;
+import com.sun.mail.imap.IMAPMessage;
 
 /**
  * process email's handed over by MailReader class.
@@ -46,13 +54,67 @@ public class MailProcessor {
 
 	protected final String LF = System.getProperty("line.separator", "\n");
 	private final Mailbox mailbox;
+	private ProcessedMessageMover messageMover = null;
+	private volatile int parallelism = 1;
+	private ForkJoinPool pool = null;
+	private final MimeParseOptions parseOptions = new MimeParseOptions();
+	private final boolean preClassify;
+	private final boolean targetedFetch;
 
 	private static final int MAX_BODY_SIZE = 150 * 1024; // 150KB
-	private static final int MAX_CMPT_SIZE = 1024 * 1024; // 1MB
-	private static final int MAX_TOTAL_SIZE = 10 * 1024 * 1024; // 10MB
+	static final int MAX_CMPT_SIZE = 1024 * 1024; // 1MB
+	static final int MAX_TOTAL_SIZE = 10 * 1024 * 1024; // 10MB
 
 	public MailProcessor(Mailbox mailbox) {
 		this.mailbox = mailbox;
+		setParallelism(mailbox.getParallelism());
+		parseOptions.setLazy(mailbox.isLazyParse());
+		// stop reading oversized parts instead of rejecting them afterwards
+		parseOptions.setMaxComponentSize(MAX_CMPT_SIZE);
+		parseOptions.setMaxTotalSize(MAX_TOTAL_SIZE);
+		parseOptions.setSpillThreshold(mailbox.getSpillThreshold());
+		preClassify = mailbox.isPreClassify();
+		targetedFetch = mailbox.isTargetedFetch();
+	}
+
+	/**
+	 * @param parallelism
+	 *            - number of messages of a batch parsed at the same time, 1
+	 *            (the default) processes them one by one on the calling
+	 *            thread. Takes effect before the first parallel batch.
+	 *            <p>
+	 *            Above 1, processPart() runs on several threads at once and
+	 *            relies on the shared SmtpScanner, BounceFinder, reserved
+	 *            header set and per-thread MailDateFormat of MessageBeanUtil
+	 *            being safe for concurrent use. Anything added to that path
+	 *            must be too, or parallelism must be left at 1.
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		this.parallelism = parallelism <= 0 ? 1 : parallelism;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * release the threads of the parallel mode.
+	 */
+	public synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	/**
+	 * set the mover that takes processed messages to the processed folder.
+	 * Processed messages stay in the folder if no mover is set.
+	 * 
+	 * @param messageMover
+	 */
+	public void setMessageMover(ProcessedMessageMover messageMover) {
+		this.messageMover = messageMover;
 	}
 
 	/**
@@ -67,16 +129,98 @@ public class MailProcessor {
 
 		//logger.debug("Entering process() method...");
 		List<Message> tempList = new ArrayList<Message>();
-		for (int i = 0; i < msgs.length; i++) { // msgs.length;
-			MessageBean bean = processPart(msgs[i]);
-			//logger.debug("Message Processed ----" + i + "---->" + bean.isMessageProcessed());
-			if (bean.isMessageProcessed())
-				tempList.add(msgs[i]);
+		if (parallelism > 1 && msgs.length > 1) {
+			processParallel(msgs, tempList);
+		} else {
+			for (int i = 0; i < msgs.length; i++) { // msgs.length;
+				MessageBean bean = processPart(msgs[i]);
+				//logger.debug("Message Processed ----" + i + "---->" + bean.isMessageProcessed());
+				try {
+					if (bean.isMessageProcessed())
+						tempList.add(msgs[i]);
+				} finally {
+					bean.release(); // delete spilled parts
+				}
+			}
 		}
 		/// message has been processed, move message to other folder
-/*		Message[] messages = tempList.toArray(new Message[tempList.size()]);
-		folder.copyMessages(messages, processedFolder);
-		folder.setFlags(messages, new Flags(Flags.Flag.DELETED), true);*/
+		if (messageMover != null) {
+			messageMover.add(tempList);
+		}
+	}
+
+	/*
+	 * fan the messages out to the fork-join pool. Results are collected in
+	 * the original order, so processed messages are moved in the order they
+	 * were read.
+	 */
+	private void processParallel(Message[] msgs, List<Message> tempList) throws MessagingException, IOException {
+		ForkJoinPool forkJoinPool = getPool();
+		List<Future<MessageBean>> futures = new ArrayList<Future<MessageBean>>(msgs.length);
+		for (int i = 0; i < msgs.length; i++) {
+			final Message msg = msgs[i];
+			futures.add(forkJoinPool.submit(new Callable<MessageBean>() {
+				public MessageBean call() throws Exception {
+					return processPart(msg);
+				}
+			}));
+		}
+		Exception failure = null;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				MessageBean bean = futures.get(i).get();
+				if (bean.isMessageProcessed())
+					tempList.add(msgs[i]);
+				bean.release(); // delete spilled parts
+			} catch (ExecutionException e) {
+				// keep collecting, the others may have been processed.
+				// processPart() released the bean of the failed message.
+				if (failure == null) {
+					failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				releaseDone(futures, i);
+				throw new MessagingException("Interrupted while processing messages", e);
+			}
+		}
+		if (failure != null) {
+			// move the ones that were processed before reporting the failure
+			if (messageMover != null) {
+				messageMover.add(tempList);
+			}
+			if (failure instanceof MessagingException) {
+				throw (MessagingException) failure;
+			}
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			}
+			throw new MessagingException("Exception caught while processing messages", failure);
+		}
+	}
+
+	/*
+	 * release the beans of the messages from "from" on that are already
+	 * done. The ones still running are left to PartStorage's deleteOnExit().
+	 */
+	private static void releaseDone(List<Future<MessageBean>> futures, int from) {
+		for (int i = from; i < futures.size(); i++) {
+			Future<MessageBean> future = futures.get(i);
+			if (future.isDone() && !future.isCancelled()) {
+				try {
+					future.get().release();
+				} catch (Exception e) {
+					// failed, nothing to release
+				}
+			}
+		}
+	}
+
+	private synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
 	}
 
 	/**
@@ -88,63 +232,115 @@ public class MailProcessor {
 	 * @throws IOException
 	 */
 	MessageBean processPart(Part p) throws IOException, MessagingException {
+		if (preClassify && p instanceof Message) {
+			String reason = BounceHeaderClassifier.getCandidateReason((Message) p);
+			if (reason == null) {
+				// clearly not a bounce, the headers are all we need
+				return processHeaders(p);
+			}
+			logger.debug("Bounce candidate (" + reason + "), reading message body");
+		}
 		Date start_tms = new Date();
 
 		// parse the MimeMessage to MessageBean
-		MessageBean msgBean = MessageBeanUtil.mimeToBean(p);
+		MessageBean msgBean = null;
+		if (targetedFetch && ImapReportFetcher.isApplicable(p)) {
+			// read the report sections only
+			try {
+				msgBean = ImapReportFetcher.reportToBean((IMAPMessage) p, parseOptions);
+			} catch (FolderClosedException e) {
+				throw e;
+			} catch (MessagingException e) {
+				logger.warn("Targeted fetch failed, reading the whole message", e);
+			}
+		}
+		if (msgBean == null) {
+			msgBean = MessageBeanUtil.mimeToBean(p, parseOptions);
+		}
 
-		// MailBox Host Address
-		msgBean.setMailboxHost(mailbox.getHost());
-		// MailBox User Id
-		msgBean.setMailboxUser(mailbox.getUserId());
+		boolean done = false;
+		try {
+			// MailBox Host Address
+			msgBean.setMailboxHost(mailbox.getHost());
+			// MailBox User Id
+			msgBean.setMailboxUser(mailbox.getUserId());
 
-		// get message body
-		String body = msgBean.getBody();
+			// get message body
+			String body = msgBean.getBody();
 
-		// check message body and component size
-		boolean msgSizeTooLarge = false;
-		if (body.length() > MAX_BODY_SIZE) {
-			msgSizeTooLarge = true;
-			logger.debug("Message body size exceeded limit: " + body.length());
-		}
-		int totalSize = body.length();
-		if (!msgSizeTooLarge && msgBean.getComponentsSize().size() > 0) {
-			for (int i = 0; i < msgBean.getComponentsSize().size(); i++) {
-				Integer objSize = (Integer) msgBean.getComponentsSize().get(i);
-				if (objSize.intValue() > MAX_CMPT_SIZE) {
-					msgSizeTooLarge = true;
-					logger.debug("Message component(" + i + ") exceeded limit: " + objSize.intValue());
-					break;
+			// check message body and component size
+			boolean msgSizeTooLarge = false;
+			if (msgBean.isTruncated()) {
+				msgSizeTooLarge = true;
+				logger.debug("Message exceeded size limit, truncated while reading");
+			} else if (body.length() > MAX_BODY_SIZE) {
+				msgSizeTooLarge = true;
+				logger.debug("Message body size exceeded limit: " + body.length());
+			}
+			int totalSize = body.length();
+			if (!msgSizeTooLarge && msgBean.getComponentsSize().size() > 0) {
+				for (int i = 0; i < msgBean.getComponentsSize().size(); i++) {
+					Integer objSize = (Integer) msgBean.getComponentsSize().get(i);
+					if (objSize.intValue() > MAX_CMPT_SIZE) {
+						msgSizeTooLarge = true;
+						logger.debug("Message component(" + i + ") exceeded limit: " + objSize.intValue());
+						break;
+					}
+					totalSize += objSize;
 				}
-				totalSize += objSize;
 			}
-		}
-		if (!msgSizeTooLarge && totalSize > MAX_TOTAL_SIZE) {
-			logger.debug("Message total size exceeded limit: " + totalSize);
-			msgSizeTooLarge = true;
-		}
+			if (!msgSizeTooLarge && totalSize > MAX_TOTAL_SIZE) {
+				logger.debug("Message total size exceeded limit: " + totalSize);
+				msgSizeTooLarge = true;
+			}
 
-		if (msgSizeTooLarge) {
-			logger.debug("The email message has been rejected due to its size");
-			// XXX - add your code here to deal with it
-		} else { // email size within the limit
-			if (msgBean.getSmtpMessageId() == null) {
-				logger.debug("SMTP Message-Id is null, FROM Address = " + msgBean.getFromAsString());
+			if (msgSizeTooLarge) {
+				logger.debug("The email message has been rejected due to its size");
+				// XXX - add your code here to deal with it
+			} else { // email size within the limit
+				if (msgBean.getSmtpMessageId() == null) {
+					logger.debug("SMTP Message-Id is null, FROM Address = " + msgBean.getFromAsString());
+				}
+
+				// logger.debug("Message read..." + LF + msgBean);
+				// XXX: Add you code here to process the message ...
 			}
+			if (msgBean.getAttachCount() > 0)
+				logger.debug("Number of attachments receibved: " + msgBean.getAttachCount());
 
-			// logger.debug("Message read..." + LF + msgBean);
-			// XXX: Add you code here to process the message ...
-		}
-		if (msgBean.getAttachCount() > 0)
-			logger.debug("Number of attachments receibved: " + msgBean.getAttachCount());
+			long time_spent = new Date().getTime() - start_tms.getTime();
 
-		long time_spent = new Date().getTime() - start_tms.getTime();
+			//logger.debug("Msg from " + msgBean.getFromAsString() + " processed, " + time_spent);
 
-		//logger.debug("Msg from " + msgBean.getFromAsString() + " processed, " + time_spent);
+			classify(msgBean);
+			done = true;
+			return msgBean;
+		} finally {
+			if (!done) {
+				msgBean.release(); // delete spilled parts of a failed message
+			}
+		}
+	}
 
+	/*
+	 * process a message that the header check found not to be a bounce
+	 * candidate, without downloading its body.
+	 */
+	private MessageBean processHeaders(Part p) throws IOException, MessagingException {
+		MessageBean msgBean = MessageBeanUtil.headersToBean(p);
+		msgBean.setMailboxHost(mailbox.getHost());
+		msgBean.setMailboxUser(mailbox.getUserId());
+		classify(msgBean);
+		return msgBean;
+	}
+
+	/*
+	 * run the bounce finder and mark the message as processed.
+	 */
+	private void classify(MessageBean msgBean) {
 		try {
 			// Checking mail is bounced mail or not
-			BounceFinder parser = new BounceFinder();
+			BounceFinder parser = BounceFinder.getInstance();
 			String bType = parser.parse(msgBean);
 			logger.debug("**********************************");
 			logger.debug("Email Subject   : " + msgBean.getSubject());			
@@ -158,7 +354,5 @@ public class MailProcessor {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-
-		return msgBean;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,361 @@
+package com.helpezee.mail.processor;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helpezee.mail.bean.MessageBean;
+import com.helpezee.mail.bean.MessageBeanUtil;
+import com.helpezee.mail.bean.MimeParseOptions;
+import com.helpezee.mail.bounceemail.BounceFinder;
+import com.helpezee.mail.bounceemail.BounceHeaderClassifier;
+
+/**
+ * Replay stored mail through the parse and classify path, without a mail
+ * server. Used to reprocess old bounces and to measure throughput.
+ * <p>
+ * The input can be:
+ * <ul>
+ * <li>a directory of .eml files, searched recursively
+ * <li>a Maildir tree, the files under its cur and new directories
+ * <li>an mbox file, split on "From " lines that follow an empty line
+ * </ul>
+ * Messages are memory mapped and parsed in place, see
+ * MessageBeanUtil.createMimeMessageFromBuffer(), by a pool of worker threads.
+ * Each message takes the same steps as in MailProcessor: the header check,
+ * then mimeToBean() for bounce candidates, then BounceFinder.
+ * <p>
+ * Lines quoted as "&gt;From " in an mbox file are not unquoted, which makes
+ * no difference to the classification.
+ *
+ * @author JackW
+ */
+public class MailReplayer {
+
+	public static Logger logger = LoggerFactory.getLogger(MailReplayer.class);
+
+	/** count of messages BounceFinder didn't classify */
+	public static final String NON_BOUNCE = "NON_BOUNCE";
+	/** count of messages that could not be parsed */
+	public static final String FAILED = "FAILED";
+
+	static final int MBOX_WINDOW = 64 * 1024 * 1024; // mbox scan window
+	private static final byte[] FROM_ = { 'F', 'r', 'o', 'm', ' ' };
+
+	private final int threads;
+	private final MimeParseOptions parseOptions;
+	private final boolean preClassify;
+
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+	private volatile long elapsedNanos = 0;
+
+	/**
+	 * @param threads
+	 *            - number of worker threads
+	 * @param parseOptions
+	 *            - options for mimeToBean()
+	 * @param preClassify
+	 *            - true to classify obvious non-bounces from their headers
+	 */
+	public MailReplayer(int threads, MimeParseOptions parseOptions, boolean preClassify) {
+		this.threads = threads;
+		this.parseOptions = parseOptions;
+		this.preClassify = preClassify;
+	}
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("usage: MailReplayer <eml dir | Maildir | mbox file> [threads] [lazy]");
+			System.exit(1);
+		}
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		MimeParseOptions options = new MimeParseOptions();
+		options.setLazy(args.length > 2 && "lazy".equalsIgnoreCase(args[2]));
+		options.setMaxComponentSize(MailProcessor.MAX_CMPT_SIZE);
+		options.setMaxTotalSize(MailProcessor.MAX_TOTAL_SIZE);
+		MailReplayer replayer = new MailReplayer(threads, options, true);
+		try {
+			replayer.replay(Paths.get(args[0]));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		replayer.printReport(System.out);
+	}
+
+	/**
+	 * process every message found under a path. Returns when all of them
+	 * have been processed.
+	 *
+	 * @param path
+	 *            - directory or mbox file
+	 * @throws IOException
+	 *             if the path can't be read
+	 * @throws InterruptedException
+	 */
+	public void replay(Path path) throws IOException, InterruptedException {
+		final MessagePipeline pipeline = new MessagePipeline("MailReplayer", threads, threads * 4);
+		long start = System.nanoTime();
+		try {
+			if (Files.isDirectory(path)) {
+				replayDirectory(path, pipeline);
+			} else {
+				replayMbox(path, pipeline);
+			}
+			pipeline.awaitIdle();
+		} finally {
+			pipeline.shutdown();
+			elapsedNanos += System.nanoTime() - start;
+		}
+	}
+
+	/*
+	 * .eml files and Maildir messages, one message per file
+	 */
+	private void replayDirectory(Path dir, final MessagePipeline pipeline) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) throws IOException {
+				if (attrs.isRegularFile() && isMessageFile(file)) {
+					try {
+						pipeline.submit(new Runnable() {
+							public void run() {
+								try {
+									process(MessageBeanUtil.mapFile(file), file.toString());
+								} catch (IOException e) {
+									logger.error("IOException caught mapping " + file, e);
+									count(FAILED);
+								}
+							}
+						});
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while queueing " + file);
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static boolean isMessageFile(Path file) {
+		if (file.getFileName().toString().toLowerCase().endsWith(".eml")) {
+			return true;
+		}
+		// Maildir, tmp holds messages still being delivered
+		Path parent = file.getParent();
+		String dirName = parent == null ? "" : parent.getFileName().toString();
+		return "cur".equals(dirName) || "new".equals(dirName);
+	}
+
+	/*
+	 * split an mbox file into messages. The file is scanned through mapped
+	 * windows so it may be larger than 2GB, each message is then mapped on
+	 * its own by the worker that processes it.
+	 */
+	private void replayMbox(final Path path, MessagePipeline pipeline) throws IOException, InterruptedException {
+		final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			long msgStart = 0; // -1 while skipping a "From " line
+			boolean lineStart = true;
+			boolean blankBefore = true; // the previous line was empty
+			long winStart = 0;
+			while (winStart < size) {
+				int winLen = (int) Math.min(MBOX_WINDOW, size - winStart);
+				MappedByteBuffer win = channel.map(FileChannel.MapMode.READ_ONLY, winStart, winLen);
+				boolean last = winStart + winLen == size;
+				// keep the lookahead for "From " inside the window
+				int scanEnd = last ? winLen : winLen - FROM_.length;
+				for (int i = 0; i < scanEnd; i++) {
+					byte b = win.get(i);
+					if (lineStart && blankBefore && b == 'F' && startsWith(win, i, FROM_)) {
+						long sep = winStart + i;
+						if (msgStart >= 0 && sep > msgStart) {
+							submitRegion(pipeline, channel, path, msgStart, sep);
+						}
+						msgStart = -1;
+					}
+					if (b == '\n') {
+						if (msgStart < 0) {
+							msgStart = winStart + i + 1; // the message starts after the "From " line
+						}
+						blankBefore = lineStart;
+						lineStart = true;
+					} else if (b != '\r') {
+						lineStart = false;
+					}
+				}
+				winStart += scanEnd;
+			}
+			if (msgStart >= 0 && size > msgStart) {
+				submitRegion(pipeline, channel, path, msgStart, size);
+			}
+			// the workers map their regions from the channel
+			pipeline.awaitIdle();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static boolean startsWith(ByteBuffer buf, int pos, byte[] prefix) {
+		if (pos + prefix.length > buf.limit()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (buf.get(pos + i) != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void submitRegion(MessagePipeline pipeline, final FileChannel channel, Path path, final long start,
+			final long end) throws InterruptedException {
+		final String source = path + "@" + start;
+		if (end - start > Integer.MAX_VALUE) {
+			logger.error("Message at " + source + " is too large to map");
+			count(FAILED);
+			return;
+		}
+		pipeline.submit(new Runnable() {
+			public void run() {
+				try {
+					process(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), source);
+				} catch (IOException e) {
+					logger.error("IOException caught mapping " + source, e);
+					count(FAILED);
+				}
+			}
+		});
+	}
+
+	/*
+	 * parse and classify one message
+	 */
+	private void process(ByteBuffer buf, String source) {
+		int size = buf.remaining();
+		MessageBean bean = null;
+		String bounceType;
+		try {
+			MimeMessage msg = MessageBeanUtil.createMimeMessageFromBuffer(buf);
+			if (preClassify && !BounceHeaderClassifier.isCandidate(msg)) {
+				bean = MessageBeanUtil.headersToBean(msg);
+			} else {
+				bean = MessageBeanUtil.mimeToBean(msg, parseOptions);
+			}
+			bounceType = BounceFinder.getInstance().parse(bean);
+			if (bounceType == null) {
+				bounceType = NON_BOUNCE;
+			}
+		} catch (Exception e) {
+			logger.error("Exception caught processing " + source, e);
+			bounceType = FAILED;
+		} finally {
+			if (bean != null) {
+				bean.release();
+			}
+		}
+		count(bounceType);
+		messages.incrementAndGet();
+		bytes.addAndGet(size);
+	}
+
+	private void count(String bounceType) {
+		AtomicLong count = counts.get(bounceType);
+		if (count == null) {
+			AtomicLong newCount = new AtomicLong();
+			count = counts.putIfAbsent(bounceType, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * @return number of messages processed
+	 */
+	public long getMessages() {
+		return messages.get();
+	}
+
+	/**
+	 * @return number of message bytes processed
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return number of messages by bounce type, NON_BOUNCE and FAILED
+	 */
+	public Map<String, Long> getCounts() {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+			map.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+		}
+		return map;
+	}
+
+	/**
+	 * @return time spent in replay() in milliseconds
+	 */
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000L;
+	}
+
+	/**
+	 * print the throughput and the classification counts.
+	 *
+	 * @param out
+	 *            - where to print
+	 */
+	public void printReport(PrintStream out) {
+		double seconds = Math.max(elapsedNanos, 1L) / 1e9;
+		out.println("Threads      : " + threads);
+		out.println("Messages     : " + getMessages());
+		out.println("Bytes        : " + getBytes());
+		out.println("Elapsed      : " + String.format("%.3f s", seconds));
+		out.println("Messages/sec : " + String.format("%.1f", getMessages() / seconds));
+		out.println("Bytes/sec    : " + String.format("%.1f", getBytes() / seconds));
+		for (Map.Entry<String, Long> entry : getCounts().entrySet()) {
+			out.println("  " + entry.getKey() + " : " + entry.getValue());
+		}
+	}
+}
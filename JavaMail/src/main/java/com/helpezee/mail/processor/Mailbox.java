@@ -33,6 +33,15 @@ public class Mailbox implements Serializable {
 	private int minimumWait; // in seconds
 	private boolean isExchange;
 	private String proccessedFolderName;
+	private int moveBatchSize = ProcessedMessageMover.DEFAULT_BATCH_SIZE;
+	private long moveMaxDelay = ProcessedMessageMover.DEFAULT_MAX_DELAY; // in milliseconds
+	private int processingThreads = MessagePipeline.DEFAULT_WORKERS;
+	private int processingQueueSize = MessagePipeline.DEFAULT_QUEUE_SIZE; // in read windows
+	private int parallelism = 1; // messages of a window parsed at the same time
+	private boolean lazyParse = false; // read part content on first access
+	private int spillThreshold = 256 * 1024; // parts above are kept on disk, in bytes
+	private boolean preClassify = true; // skip the body when it can't change the verdict
+	private boolean targetedFetch = true; // IMAP reports: fetch the report sections only
 
 	public Mailbox(String userId, String userPswd, String host, int port, String protocol, String folderName,
 			int messagesPerRead, boolean useSsl, int maxRetries, int minimumWait, boolean isExchange,
@@ -136,4 +145,76 @@ public class Mailbox implements Serializable {
 		this.proccessedFolderName = proccessedFolderName;
 	}
 
+	public int getMoveBatchSize() {
+		return moveBatchSize;
+	}
+
+	public void setMoveBatchSize(int moveBatchSize) {
+		this.moveBatchSize = moveBatchSize;
+	}
+
+	public long getMoveMaxDelay() {
+		return moveMaxDelay;
+	}
+
+	public void setMoveMaxDelay(long moveMaxDelay) {
+		this.moveMaxDelay = moveMaxDelay;
+	}
+
+	public int getProcessingThreads() {
+		return processingThreads;
+	}
+
+	public void setProcessingThreads(int processingThreads) {
+		this.processingThreads = processingThreads;
+	}
+
+	public int getProcessingQueueSize() {
+		return processingQueueSize;
+	}
+
+	public void setProcessingQueueSize(int processingQueueSize) {
+		this.processingQueueSize = processingQueueSize;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public boolean isLazyParse() {
+		return lazyParse;
+	}
+
+	public void setLazyParse(boolean lazyParse) {
+		this.lazyParse = lazyParse;
+	}
+
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public boolean isPreClassify() {
+		return preClassify;
+	}
+
+	public void setPreClassify(boolean preClassify) {
+		this.preClassify = preClassify;
+	}
+
+	public boolean isTargetedFetch() {
+		return targetedFetch;
+	}
+
+	public void setTargetedFetch(boolean targetedFetch) {
+		this.targetedFetch = targetedFetch;
+	}
+
 }
@@ -0,0 +1,173 @@
+package com.helpezee.mail.processor;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded queue of read windows between the IMAP reader and a pool of
+ * processing threads.
+ * <p>
+ * The producer (the reader thread, or JavaMail's event-dispatch thread) only
+ * enqueues. When the workers fall behind and the queue is full, submit()
+ * blocks until a slot frees up, which throttles further fetching instead of
+ * letting pending windows pile up in memory.
+ */
+public class MessagePipeline {
+
+	public static Logger logger = LoggerFactory.getLogger(MessagePipeline.class);
+
+	public static final int DEFAULT_WORKERS = 1;
+	public static final int DEFAULT_QUEUE_SIZE = 16;
+	private static final long WORKER_KEEPALIVE = 60; // in seconds
+
+	private final ThreadPoolExecutor executor;
+	// one permit per queue slot and per worker, so execute() never rejects
+	private final Semaphore slots;
+	private final int workers;
+	private final int queueSize;
+
+	private final Object idleLock = new Object();
+	private int inFlight = 0;
+	private final AtomicLong tasksCompleted = new AtomicLong(0);
+	private final AtomicLong tasksFailed = new AtomicLong(0);
+
+	/**
+	 * create a pipeline
+	 *
+	 * @param name
+	 *            - prefix of the worker thread names
+	 * @param workers
+	 *            - number of processing threads
+	 * @param queueSize
+	 *            - number of tasks that may wait for a worker
+	 */
+	public MessagePipeline(final String name, int workers, int queueSize) {
+		this.workers = workers <= 0 ? DEFAULT_WORKERS : workers;
+		this.queueSize = queueSize <= 0 ? DEFAULT_QUEUE_SIZE : queueSize;
+		slots = new Semaphore(this.workers + this.queueSize);
+		executor = new ThreadPoolExecutor(this.workers, this.workers, WORKER_KEEPALIVE, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(this.queueSize), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger(0);
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		// idle readers don't hold on to their threads
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * queue a task, blocking while the queue is full.
+	 *
+	 * @param task
+	 *            - task to be run by a worker
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a free slot
+	 */
+	public void submit(final Runnable task) throws InterruptedException {
+		slots.acquire();
+		synchronized (idleLock) {
+			inFlight++;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+						tasksCompleted.incrementAndGet();
+					} catch (RuntimeException e) {
+						tasksFailed.incrementAndGet();
+						logger.error("RuntimeException caught in pipeline worker", e);
+					} finally {
+						release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			// shut down
+			release();
+			throw e;
+		}
+	}
+
+	/**
+	 * wait until every task submitted so far has finished.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitIdle() throws InterruptedException {
+		synchronized (idleLock) {
+			while (inFlight > 0) {
+				idleLock.wait();
+			}
+		}
+	}
+
+	/**
+	 * stop the workers after the queued tasks have been run.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @return number of tasks queued or being run
+	 */
+	public int getPendingCount() {
+		synchronized (idleLock) {
+			return inFlight;
+		}
+	}
+
+	public long getTasksCompleted() {
+		return tasksCompleted.get();
+	}
+
+	public long getTasksFailed() {
+		return tasksFailed.get();
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	private void release() {
+		slots.release();
+		synchronized (idleLock) {
+			inFlight--;
+			if (inFlight == 0) {
+				idleLock.notifyAll();
+			}
+		}
+	}
+}
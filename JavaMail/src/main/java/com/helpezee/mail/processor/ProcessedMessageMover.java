@@ -0,0 +1,205 @@
+package com.helpezee.mail.processor;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+
+/**
+ * Moves processed messages to the processed folder in batches.
+ * <p>
+ * Messages are accumulated and moved when the batch is full, or when the
+ * oldest pending message has waited longer than the maximum delay. A batch
+ * is moved with one IMAP MOVE (RFC 6851) when the server supports it.
+ * Otherwise it is copied, flagged as DELETED and removed with UID EXPUNGE
+ * (RFC 4315), or a plain EXPUNGE if the server doesn't support UIDPLUS.
+ */
+public class ProcessedMessageMover {
+
+	public static Logger logger = LoggerFactory.getLogger(ProcessedMessageMover.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final long DEFAULT_MAX_DELAY = 30 * 1000; // 30 seconds
+
+	private final Folder folder;
+	private final Folder processedFolder;
+	private final int batchSize;
+	private final long maxDelay;
+
+	private final List<Message> pending = new ArrayList<Message>();
+	private long firstPendingTime = 0L;
+	private long messagesMoved = 0L;
+
+	/**
+	 * create a mover with default batch size and delay
+	 *
+	 * @param folder
+	 *            - folder the messages are read from, opened READ_WRITE
+	 * @param processedFolder
+	 *            - folder the messages are moved to
+	 */
+	public ProcessedMessageMover(Folder folder, Folder processedFolder) {
+		this(folder, processedFolder, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * create a mover
+	 *
+	 * @param folder
+	 *            - folder the messages are read from, opened READ_WRITE
+	 * @param processedFolder
+	 *            - folder the messages are moved to
+	 * @param batchSize
+	 *            - number of pending messages that triggers a move
+	 * @param maxDelay
+	 *            - milliseconds a message may wait before it is moved
+	 */
+	public ProcessedMessageMover(Folder folder, Folder processedFolder, int batchSize, long maxDelay) {
+		if (folder == null || processedFolder == null) {
+			throw new IllegalArgumentException("Both folder and processed folder are required");
+		}
+		this.folder = folder;
+		this.processedFolder = processedFolder;
+		this.batchSize = batchSize <= 0 ? DEFAULT_BATCH_SIZE : batchSize;
+		this.maxDelay = maxDelay < 0 ? DEFAULT_MAX_DELAY : maxDelay;
+	}
+
+	/**
+	 * add processed messages, a move is triggered if the batch is full or due.
+	 *
+	 * @param msgs
+	 *            - processed messages
+	 * @throws MessagingException
+	 */
+	public synchronized void add(List<Message> msgs) throws MessagingException {
+		if (msgs == null || msgs.isEmpty()) {
+			return;
+		}
+		if (pending.isEmpty()) {
+			firstPendingTime = System.currentTimeMillis();
+		}
+		pending.addAll(msgs);
+		if (pending.size() >= batchSize) {
+			flush();
+		} else {
+			flushIfDue();
+		}
+	}
+
+	/**
+	 * move the pending messages if the oldest one has waited long enough.
+	 *
+	 * @return number of messages moved
+	 * @throws MessagingException
+	 */
+	public synchronized int flushIfDue() throws MessagingException {
+		if (isFlushDue()) {
+			return flush();
+		}
+		return 0;
+	}
+
+	/**
+	 * @return true if the oldest pending message has waited longer than the
+	 *         maximum delay. A reader blocked in IMAP IDLE checks this from a
+	 *         timer, and wakes up to call flushIfDue() when it's true.
+	 */
+	public synchronized boolean isFlushDue() {
+		return !pending.isEmpty() && System.currentTimeMillis() - firstPendingTime >= maxDelay;
+	}
+
+	/**
+	 * @return milliseconds a message may wait before it is moved
+	 */
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * move all pending messages, in batches of batchSize.
+	 *
+	 * @return number of messages moved
+	 * @throws MessagingException
+	 */
+	public synchronized int flush() throws MessagingException {
+		int moved = 0;
+		while (!pending.isEmpty()) {
+			List<Message> batch = pending.subList(0, Math.min(batchSize, pending.size()));
+			Message[] msgs = batch.toArray(new Message[batch.size()]);
+			move(msgs);
+			batch.clear();
+			moved += msgs.length;
+		}
+		messagesMoved += moved;
+		return moved;
+	}
+
+	/**
+	 * @return number of messages waiting to be moved
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return number of messages moved so far
+	 */
+	public synchronized long getMessagesMoved() {
+		return messagesMoved;
+	}
+
+	private void move(Message[] msgs) throws MessagingException {
+		long start_tms = System.currentTimeMillis();
+		String method;
+		if (folder instanceof IMAPFolder) {
+			IMAPFolder imapFolder = (IMAPFolder) folder;
+			IMAPStore store = (IMAPStore) imapFolder.getStore();
+			if (store.hasCapability("MOVE")) {
+				method = "MOVE";
+				imapFolder.moveMessages(msgs, processedFolder);
+			} else {
+				imapFolder.copyMessages(msgs, processedFolder);
+				imapFolder.setFlags(msgs, new Flags(Flags.Flag.DELETED), true);
+				if (store.hasCapability("UIDPLUS")) {
+					// UID EXPUNGE only removes this batch
+					method = "COPY/UID EXPUNGE";
+					imapFolder.expunge(msgs);
+				} else {
+					method = "COPY/EXPUNGE";
+					imapFolder.expunge();
+				}
+			}
+		} else {
+			method = "COPY/EXPUNGE";
+			folder.copyMessages(msgs, processedFolder);
+			folder.setFlags(msgs, new Flags(Flags.Flag.DELETED), true);
+			folder.expunge();
+		}
+		logger.debug(msgs.length + " messages moved to " + processedFolder.getFullName() + " using " + method
+				+ ", time taken: " + (System.currentTimeMillis() - start_tms));
+	}
+}
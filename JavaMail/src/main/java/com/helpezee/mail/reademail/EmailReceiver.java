@@ -10,6 +10,8 @@ import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
 import javax.mail.Session;
 import javax.mail.Store;
+
+import com.helpezee.mail.connectionpool.StoreConnectionPool;
  
 /**
  * This program demonstrates how to get e-mail messages from a POP3/IMAP server
@@ -56,14 +58,15 @@ public class EmailReceiver {
         Properties properties = getServerProperties(protocol, host, port);
         Session session = Session.getDefaultInstance(properties);
  
+        StoreConnectionPool pool = StoreConnectionPool.getInstance();
+        Store store = null;
+        Folder folderInbox = null;
         try {
-            // connects to the message store
-            Store store = session.getStore(protocol);
-            store.connect(userName, password);
+            // borrows a connected message store
+            store = pool.borrowStore(session, protocol, host, Integer.parseInt(port), userName, password);
  
-            // opens the inbox folder
-            Folder folderInbox = store.getFolder("INBOX");
-            folderInbox.open(Folder.READ_ONLY);
+            // borrows the opened inbox folder
+            folderInbox = pool.borrowFolder(store, "INBOX", Folder.READ_ONLY);
  
             // fetches new messages from server
             Message[] messages = folderInbox.getMessages();
@@ -109,15 +112,17 @@ public class EmailReceiver {
                           
             }
  
-            // disconnect
-            folderInbox.close(false);
-            store.close();
+            // hands the connection back to the pool
+            pool.returnFolder(folderInbox);
+            pool.returnStore(store);
         } catch (NoSuchProviderException ex) {
             System.out.println("No provider for protocol: " + protocol);
             ex.printStackTrace();
         } catch (MessagingException ex) {
             System.out.println("Could not connect to the message store");
             ex.printStackTrace();
+            pool.invalidateFolder(folderInbox);
+            pool.invalidateStore(store);
         }
     }
  
@@ -5,15 +5,15 @@ import java.util.List;
 import java.util.Properties;
 
 import javax.mail.FetchProfile;
-import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
 import javax.mail.Session;
 import javax.mail.Store;
-import javax.mail.search.SearchTerm;
 
+import com.helpezee.mail.connectionpool.StoreConnectionPool;
+import com.helpezee.mail.processor.ProcessedMessageMover;
 import com.sun.mail.imap.IMAPFolder.FetchProfileItem;
 
 /**
@@ -25,9 +25,11 @@ import com.sun.mail.imap.IMAPFolder.FetchProfileItem;
  */
 public class EmailSearcher {
 
+	private static final int MOVE_BATCH_SIZE = 2000;
+
 	/**
 	 * Searches for e-mail messages containing the specified keyword in Subject
-	 * field.
+	 * field. The keyword is matched by the server, case insensitive.
 	 * 
 	 * @param host
 	 * @param port
@@ -38,6 +40,24 @@ public class EmailSearcher {
 	 */
 	public void searchEmail(String host, String port, String userName, String password, final String keyword)
 			throws InterruptedException {
+		// creates a subject search criterion
+		SearchCriteria criteria = new SearchCriteria();
+		criteria.addSubject(keyword);
+		searchEmail(host, port, userName, password, criteria);
+	}
+
+	/**
+	 * Searches for e-mail messages which satisfy the search criteria.
+	 * 
+	 * @param host
+	 * @param port
+	 * @param userName
+	 * @param password
+	 * @param criteria
+	 * @throws InterruptedException
+	 */
+	public void searchEmail(String host, String port, String userName, String password, SearchCriteria criteria)
+			throws InterruptedException {
 		Properties properties = new Properties();
 
 		// server setting
@@ -53,38 +73,17 @@ public class EmailSearcher {
 
 		Session session = Session.getDefaultInstance(properties);
 
+		StoreConnectionPool pool = StoreConnectionPool.getInstance();
+		Store store = null;
+		Folder folderInbox = null;
 		try {
-			// connects to the message store
-			Store store = session.getStore("imap");
-			store.connect(userName, password);
+			// borrows a connected message store
+			store = pool.borrowStore(session, "imap", host, Integer.parseInt(port), userName, password);
 
-			// opens the inbox folder
-			Folder folderInbox = store.getFolder("INBOX");
-			// Create TEST Folder in mailbox
+			// borrows the opened inbox folder
+			folderInbox = pool.borrowFolder(store, "INBOX", Folder.READ_WRITE);
+			// Create TEST Folder in mailbox, it only needs to exist for a move
 			Folder destinationFolder = store.getFolder("TEST");
-			folderInbox.open(Folder.READ_WRITE);
-			destinationFolder.open(Folder.READ_WRITE);
-
-			// creates a subject search criterion
-			SearchTerm subjectSearchCondition = new SearchTerm() {
-
-				/**
-				 * 
-				 */
-				private static final long serialVersionUID = 1L;
-
-				@Override
-				public boolean match(Message message) {
-					try {
-						if (message != null && message.getSubject() != null && message.getSubject().contains(keyword)) {
-							return true;
-						}
-					} catch (MessagingException ex) {
-						ex.printStackTrace();
-					}
-					return false;
-				}
-			};
 
 			//https://stackoverflow.com/questions/20237801/reading-from-javamail-takes-a-long-time
 			FetchProfile fp = new FetchProfile();
@@ -93,9 +92,10 @@ public class EmailSearcher {
 			fp.add(FetchProfileItem.CONTENT_INFO);
 			fp.add("X-mailer");
 
-			// performs search through the folder
-			Message[] foundMessages = folderInbox.search(subjectSearchCondition);
+			// performs search through the folder, on the server side
+			Message[] foundMessages = criteria.search(folderInbox);
 			System.out.println("Message Length ----" + foundMessages.length);
+			folderInbox.fetch(foundMessages, fp);
 
 			List<Message> tempList = new ArrayList<Message>();
 			for (int i = 0; i < foundMessages.length; i++) {
@@ -107,22 +107,23 @@ public class EmailSearcher {
 				// TODO Some Processing logic
 
 			}
-			// moveMessage(tempList, folderInbox, destinationFolder, 2000);
-			Message[] messages = tempList.toArray(new Message[tempList.size()]);
-			folderInbox.copyMessages(messages, destinationFolder);
-			folderInbox.setFlags(messages, new Flags(Flags.Flag.DELETED), true);
-			folderInbox.expunge();
-
-			// disconnect
-			folderInbox.close(true);
-			destinationFolder.close(false);
-			store.close();
+			// moves the messages in batches of MOVE_BATCH_SIZE
+			ProcessedMessageMover mover = new ProcessedMessageMover(folderInbox, destinationFolder, MOVE_BATCH_SIZE,
+					ProcessedMessageMover.DEFAULT_MAX_DELAY);
+			mover.add(tempList);
+			mover.flush();
+
+			// hands the connection back to the pool
+			pool.returnFolder(folderInbox);
+			pool.returnStore(store);
 		} catch (NoSuchProviderException ex) {
 			System.out.println("No provider.");
 			ex.printStackTrace();
 		} catch (MessagingException ex) {
 			System.out.println("Could not connect to the message store.");
 			ex.printStackTrace();
+			pool.invalidateFolder(folderInbox);
+			pool.invalidateStore(store);
 		}
 	}
 
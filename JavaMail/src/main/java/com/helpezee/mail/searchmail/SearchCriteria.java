@@ -0,0 +1,236 @@
+package com.helpezee.mail.searchmail;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.search.AndTerm;
+import javax.mail.search.BodyTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.HeaderTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SentDateTerm;
+import javax.mail.search.SubjectTerm;
+
+/**
+ * Search criteria that compile to standard javax.mail.search terms, so an IMAP
+ * server can evaluate them with a single SEARCH command.
+ * <p>
+ * JavaMail only translates the terms defined in javax.mail.search into IMAP
+ * SEARCH keys. As soon as a term tree contains anything else, such as an
+ * anonymous SearchTerm subclass, the whole search falls back to downloading
+ * every message and matching on the client. Predicates the server can't
+ * express are therefore kept apart as client filters: the server narrows the
+ * folder down first, and the client filters only run over those results.
+ *
+ * <pre>
+ * SearchCriteria criteria = new SearchCriteria();
+ * criteria.addSubject(&quot;Undeliverable&quot;);
+ * criteria.addReceivedAfter(yesterday);
+ * Message[] found = criteria.search(folder);
+ * </pre>
+ */
+public class SearchCriteria {
+
+	private final List<SearchTerm> serverTerms = new ArrayList<SearchTerm>();
+	private final List<SearchTerm> clientTerms = new ArrayList<SearchTerm>();
+	private boolean matchAll = true;
+
+	/**
+	 * messages whose Subject contains the keyword, case insensitive
+	 *
+	 * @param keyword
+	 */
+	public void addSubject(String keyword) {
+		serverTerms.add(new SubjectTerm(keyword));
+	}
+
+	/**
+	 * messages whose From address contains the pattern, case insensitive
+	 *
+	 * @param pattern
+	 */
+	public void addFrom(String pattern) {
+		serverTerms.add(new FromStringTerm(pattern));
+	}
+
+	/**
+	 * messages whose To address contains the pattern, case insensitive
+	 *
+	 * @param pattern
+	 */
+	public void addTo(String pattern) {
+		serverTerms.add(new RecipientStringTerm(Message.RecipientType.TO, pattern));
+	}
+
+	/**
+	 * messages whose body contains the pattern, case insensitive
+	 *
+	 * @param pattern
+	 */
+	public void addBody(String pattern) {
+		serverTerms.add(new BodyTerm(pattern));
+	}
+
+	/**
+	 * messages that have a header containing the pattern, case insensitive
+	 *
+	 * @param headerName
+	 * @param pattern
+	 */
+	public void addHeader(String headerName, String pattern) {
+		serverTerms.add(new HeaderTerm(headerName, pattern));
+	}
+
+	/**
+	 * messages received on or after the date. IMAP compares dates only, the
+	 * time of the day is ignored.
+	 *
+	 * @param date
+	 */
+	public void addReceivedAfter(Date date) {
+		serverTerms.add(new ReceivedDateTerm(ComparisonTerm.GE, date));
+	}
+
+	/**
+	 * messages received before the date. IMAP compares dates only, the time
+	 * of the day is ignored.
+	 *
+	 * @param date
+	 */
+	public void addReceivedBefore(Date date) {
+		serverTerms.add(new ReceivedDateTerm(ComparisonTerm.LT, date));
+	}
+
+	/**
+	 * messages sent on or after the date
+	 *
+	 * @param date
+	 */
+	public void addSentAfter(Date date) {
+		serverTerms.add(new SentDateTerm(ComparisonTerm.GE, date));
+	}
+
+	/**
+	 * messages sent before the date
+	 *
+	 * @param date
+	 */
+	public void addSentBefore(Date date) {
+		serverTerms.add(new SentDateTerm(ComparisonTerm.LT, date));
+	}
+
+	/**
+	 * messages with the flag set, or cleared
+	 *
+	 * @param flag
+	 *            - for example Flags.Flag.SEEN
+	 * @param set
+	 *            - true for messages with the flag set
+	 */
+	public void addFlag(Flags.Flag flag, boolean set) {
+		serverTerms.add(new FlagTerm(new Flags(flag), set));
+	}
+
+	/**
+	 * add a predicate that the server can't evaluate. It is matched on the
+	 * client against the messages found by the server.
+	 *
+	 * @param term
+	 */
+	public void addClientFilter(SearchTerm term) {
+		clientTerms.add(term);
+	}
+
+	/**
+	 * @param matchAll
+	 *            - true (the default) when a message must meet all criteria,
+	 *            false when meeting any of them is enough.
+	 */
+	public void setMatchAll(boolean matchAll) {
+		this.matchAll = matchAll;
+	}
+
+	public boolean isMatchAll() {
+		return matchAll;
+	}
+
+	/**
+	 * @return the term to be sent to the server, or null if there is nothing
+	 *         the server can evaluate
+	 */
+	public SearchTerm getServerTerm() {
+		if (!matchAll && !clientTerms.isEmpty()) {
+			// "server OR client" can't be narrowed down by the server
+			return null;
+		}
+		return combine(serverTerms);
+	}
+
+	/**
+	 * @return the term to be matched on the client, or null if the server
+	 *         term covers all criteria
+	 */
+	public SearchTerm getClientTerm() {
+		if (clientTerms.isEmpty()) {
+			return null;
+		}
+		if (matchAll) {
+			return combine(clientTerms);
+		}
+		// fall back to client-side evaluation of the whole OR
+		List<SearchTerm> all = new ArrayList<SearchTerm>(serverTerms);
+		all.addAll(clientTerms);
+		return combine(all);
+	}
+
+	/**
+	 * search the folder. The server term goes out as one SEARCH command; the
+	 * client term, if any, is then matched against the messages returned.
+	 *
+	 * @param folder
+	 *            - an open folder
+	 * @return messages found
+	 * @throws MessagingException
+	 */
+	public Message[] search(Folder folder) throws MessagingException {
+		SearchTerm serverTerm = getServerTerm();
+		SearchTerm clientTerm = getClientTerm();
+		Message[] found = serverTerm == null ? folder.getMessages() : folder.search(serverTerm);
+		if (clientTerm == null || found.length == 0) {
+			return found;
+		}
+		// client filters mostly look at the envelope, get it in one go
+		FetchProfile fp = new FetchProfile();
+		fp.add(FetchProfile.Item.ENVELOPE);
+		folder.fetch(found, fp);
+		List<Message> matched = new ArrayList<Message>();
+		for (int i = 0; i < found.length; i++) {
+			if (clientTerm.match(found[i])) {
+				matched.add(found[i]);
+			}
+		}
+		return matched.toArray(new Message[matched.size()]);
+	}
+
+	private SearchTerm combine(List<SearchTerm> terms) {
+		if (terms.isEmpty()) {
+			return null;
+		}
+		if (terms.size() == 1) {
+			return terms.get(0);
+		}
+		SearchTerm[] array = terms.toArray(new SearchTerm[terms.size()]);
+		return matchAll ? new AndTerm(array) : new OrTerm(array);
+	}
+}
@@ -0,0 +1,68 @@
+package com.helpezee.mail.bean;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Compares MessageBean.getBody() and getBodyContentType() with the cached
+ * values against rebuilding them from the part tree on every call, the way
+ * they worked before they were cached. Not run by the build, start it with
+ * the test classpath:
+ *
+ * <pre>
+ * java com.helpezee.mail.bean.MessageBeanBodyBenchmark [rounds]
+ * </pre>
+ *
+ * The chars copied per message are those of the Strings getBody() builds;
+ * a cached call builds none.
+ *
+ * @author JackW
+ */
+public class MessageBeanBodyBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		MessageBean msgBean = MessageBeanTest.createBean(200);
+		String expected = msgBean.getBody();
+		String[] names = { "uncached", "cached" };
+		for (int warmup = 0; warmup < 2; warmup++) {
+			for (int n = 0; n < names.length; n++) {
+				boolean cached = n == 1;
+				long copied = 0;
+				String last = msgBean.getBody();
+				long start = System.nanoTime();
+				for (int i = 0; i < rounds; i++) {
+					if (!cached) {
+						msgBean.changed(); // drop the cached values
+					}
+					String body = msgBean.getBody();
+					msgBean.getBodyContentType();
+					if (body != last) {
+						copied += body.length();
+						last = body;
+					}
+				}
+				long elapsed = System.nanoTime() - start;
+				if (!expected.equals(last)) {
+					throw new IllegalStateException("Results differ for the " + names[n] + " body");
+				}
+				if (warmup == 1) {
+					System.out.println(names[n] + ": " + elapsed / rounds + " ns/message, " + copied / rounds
+							+ " chars copied/message");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.helpezee.mail.bean;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * The cached body and body content type of a MessageBean must match what
+ * the part tree gives, and must be rebuilt when the tree changes.
+ *
+ * @author JackW
+ */
+public class MessageBeanTest extends TestCase {
+
+	static final String MESSAGE = "From: orders@example.com\r\n"
+			+ "To: customer@example.org\r\n"
+			+ "Subject: Your order has shipped\r\n"
+			+ "MIME-Version: 1.0\r\n"
+			+ "Content-Type: multipart/mixed; boundary=\"M\"\r\n"
+			+ "\r\n"
+			+ "--M\r\n"
+			+ "Content-Type: multipart/alternative; boundary=\"A\"\r\n"
+			+ "\r\n"
+			+ "--A\r\n"
+			+ "Content-Type: text/plain; charset=us-ascii\r\n"
+			+ "\r\n"
+			+ "BODY_TEXT"
+			+ "--A\r\n"
+			+ "Content-Type: text/html; charset=us-ascii\r\n"
+			+ "\r\n"
+			+ "<pre>BODY_TEXT</pre>\r\n"
+			+ "--A--\r\n"
+			+ "--M\r\n"
+			+ "Content-Type: application/octet-stream; name=\"invoice.csv\"\r\n"
+			+ "\r\n"
+			+ "item,qty\r\n"
+			+ "--M--\r\n";
+
+	/**
+	 * @param lines
+	 *            - number of lines of the text and html bodies
+	 * @return a multipart/mixed message with a text and html body and one
+	 *         attachment
+	 */
+	static MessageBean createBean(int lines) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			sb.append("Order line ").append(i).append(": 1 x widget, shipped from the central warehouse.\r\n");
+		}
+		String mime = MESSAGE.replace("BODY_TEXT", sb.toString());
+		return MessageBeanUtil.createMessageBeanFromStream(mime.getBytes("US-ASCII"));
+	}
+
+	public void testCachedUntilChanged() throws Exception {
+		MessageBean msgBean = createBean(20);
+		String body = msgBean.getBody();
+		String type = msgBean.getBodyContentType();
+		assertTrue(body, body.indexOf("Order line 19") >= 0);
+		assertSame(body, msgBean.getBody());
+		assertSame(type, msgBean.getBodyContentType());
+
+		msgBean.changed();
+		String rebuilt = msgBean.getBody();
+		assertNotSame(body, rebuilt);
+		assertEquals(body, rebuilt);
+		assertEquals(type, msgBean.getBodyContentType());
+	}
+
+	public void testChangeBelowTheRootDropsTheCache() throws Exception {
+		MessageBean msgBean = createBean(1);
+		String body = msgBean.getBody();
+		BodypartBean leaf = msgBean.getBodyNode();
+		assertNotNull(leaf);
+		leaf.setValue("replaced");
+		assertFalse(body.equals(msgBean.getBody()));
+		assertTrue(msgBean.getBody(), msgBean.getBody().indexOf("replaced") >= 0);
+	}
+
+	public void testSerializedCopy() throws Exception {
+		MessageBean msgBean = createBean(5);
+		String body = msgBean.getBody();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(msgBean);
+		oos.close();
+		MessageBean copy = (MessageBean) new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))
+				.readObject();
+		assertEquals(body, copy.getBody());
+		assertEquals(msgBean.getBodyContentType(), copy.getBodyContentType());
+	}
+}
@@ -0,0 +1,102 @@
+package com.helpezee.mail.bean;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * scanBody(byte[]) is checked against scanBody(CharSequence) on every input.
+ *
+ * @author JackW
+ */
+public class SmtpScannerTest extends TestCase {
+
+	private SmtpScanner scanner;
+
+	protected void setUp() throws IOException {
+		scanner = SmtpScanner.getInstance();
+	}
+
+	/*
+	 * scan the text both ways, they must agree
+	 */
+	private String scan(String text) {
+		String result = scanner.scanBody(text);
+		byte[] bytes = text.getBytes();
+		assertEquals(text, result, scanner.scanBody(bytes, 0, bytes.length));
+		// the same text in the middle of a larger array
+		byte[] padded = new byte[bytes.length + 8];
+		Arrays.fill(padded, (byte) '9');
+		System.arraycopy(bytes, 0, padded, 4, bytes.length);
+		assertEquals(text, result, scanner.scanBody(padded, 4, bytes.length));
+		return result;
+	}
+
+	public void testRfc1893Code() {
+		assertEquals("Bad destination mailbox address", scan("x 5.1.1 y"));
+		assertEquals("Mailbox full(The email account is over quota)", scan("Status: 4.2.2\r\n"));
+		assertEquals("Delivery not authorized, message refused", scan(" 5.7.1 \n"));
+		assertEquals("Bad destination mailbox address",
+				scan("said: 550 5.1.1 <a@b>: Recipient address rejected"));
+	}
+
+	public void testRfc1893CodeMustBeAToken() {
+		assertNull(scan("x 9.1.1 "));
+		assertNull(scan("version 5.1.1x"));
+		assertNull(scan("x5.1.1 y"));
+		assertNull(scan(" 5.1234.1 x"));
+		assertEquals("Mailbox full(The email account is over quota)", scan(" 5.1234.1 x 4.2.2 "));
+	}
+
+	public void testRfc2821ReplyText() {
+		assertEquals("Requested action not taken: mailbox unavailable",
+				scan("said: 550 Requested action not taken: mailbox unavailable"));
+		assertEquals("Requested action not taken: mailbox unavailable", scan("550-Mailbox unavailable\r\n550 more"));
+		assertEquals("Requested action not taken: mailbox unavailable", scan("reply 550 No such user here"));
+	}
+
+	public void testRfc2821CodeWithoutReplyText() {
+		assertNull(scan("invoice 550 attached, ask the user"));
+		assertNull(scan("550 \n"));
+		assertNull(scan("5500 mailbox unavailable"));
+		assertNull(scan("aaa 201 aab\n422\naccount is full "));
+	}
+
+	public void testOnlyTheStartIsScanned() {
+		char[] filler = new char[scanner.maxLenToScan];
+		Arrays.fill(filler, 'x');
+		assertNull(scan(new String(filler) + " 5.1.1 "));
+		assertEquals("Bad destination mailbox address", scan(" 5.1.1 " + new String(filler)));
+	}
+
+	public void testNothingToScan() {
+		assertNull(scanner.scanBody((CharSequence) null));
+		assertNull(scanner.scanBody((byte[]) null, 0, 0));
+		assertNull(scan(""));
+	}
+
+	public void testDescriptions() {
+		assertEquals("Bad destination mailbox address",
+				scanner.getRfc1893Description(SmtpScanner.packStatusCode(5, 1, 1)));
+		assertNull(scanner.getRfc1893Description(SmtpScanner.packStatusCode(5, 999, 1)));
+		assertEquals("Requested action not taken: mailbox unavailable", scanner.getRfc2821Description(550));
+		assertNull(scanner.getRfc2821Description(250));
+		assertNull(scanner.getRfc2821Description(1000));
+	}
+}
@@ -0,0 +1,103 @@
+package com.helpezee.mail.bounceemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import com.helpezee.mail.bean.MessageBean;
+import com.helpezee.mail.bean.MessageBeanUtil;
+
+import junit.framework.TestCase;
+
+/**
+ * A message that is not a candidate must get the same verdict from its
+ * headers as from the full parse.
+ *
+ * @author JackW
+ */
+public class BounceHeaderClassifierTest extends TestCase {
+
+	/* a bounce from an ordinary sender, with the original message attached */
+	private static final String FORWARDED_BOUNCE = "From: helpdesk@example.net\r\n"
+			+ "To: sender@example.com\r\n"
+			+ "Subject: About your message\r\n"
+			+ "MIME-Version: 1.0\r\n"
+			+ "Content-Type: multipart/mixed; boundary=\"M\"\r\n"
+			+ "\r\n"
+			+ "--M\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "\r\n"
+			+ "Your message was returned: 5.1.1 user unknown\r\n"
+			+ "--M\r\n"
+			+ "Content-Type: message/rfc822\r\n"
+			+ "\r\n"
+			+ "From: sender@example.com\r\n"
+			+ "To: mary@example.net\r\n"
+			+ "Subject: Lunch\r\n"
+			+ "\r\n"
+			+ "See you there.\r\n"
+			+ "--M--\r\n";
+
+	private static final String PLAIN = "From: jane@example.org\r\n"
+			+ "To: sender@example.com\r\n"
+			+ "Subject: Re: Lunch\r\n"
+			+ "MIME-Version: 1.0\r\n"
+			+ "Content-Type: multipart/alternative; boundary=\"A\"\r\n"
+			+ "\r\n"
+			+ "--A\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "\r\n"
+			+ "Sure, 5.1.1 is the room.\r\n"
+			+ "--A--\r\n";
+
+	private static MimeMessage message(String text) throws Exception {
+		return new MimeMessage(Session.getInstance(new Properties()),
+				new ByteArrayInputStream(text.getBytes("US-ASCII")));
+	}
+
+	public void testAttachedMessageIsCandidate() throws Exception {
+		assertEquals("message/rfc822", BounceHeaderClassifier.getCandidateReason(message(FORWARDED_BOUNCE)));
+	}
+
+	public void testNestedReportIsCandidate() throws Exception {
+		String nested = "From: jane@example.org\r\nSubject: fwd\r\nMIME-Version: 1.0\r\n"
+				+ "Content-Type: multipart/mixed; boundary=\"M\"\r\n\r\n"
+				+ "--M\r\nContent-Type: multipart/report; report-type=delivery-status; boundary=\"R\"\r\n\r\n"
+				+ "--R\r\nContent-Type: text/plain\r\n\r\nfailed\r\n--R--\r\n"
+				+ "--M--\r\n";
+		assertEquals("multipart/report", BounceHeaderClassifier.getCandidateReason(message(nested)));
+	}
+
+	public void testSameVerdictAsFullParse() throws Exception {
+		String[] texts = { FORWARDED_BOUNCE, PLAIN };
+		for (String text : texts) {
+			MimeMessage msg = message(text);
+			MessageBean full = MessageBeanUtil.mimeToBean(msg);
+			String expected = BounceFinder.getInstance().parse(full);
+			if (!BounceHeaderClassifier.isCandidate(msg)) {
+				MessageBean headers = MessageBeanUtil.headersToBean(msg);
+				assertEquals(expected, BounceFinder.getInstance().parse(headers));
+			} else {
+				assertNotNull(expected);
+			}
+		}
+		assertFalse(BounceHeaderClassifier.isCandidate(message(PLAIN)));
+	}
+}
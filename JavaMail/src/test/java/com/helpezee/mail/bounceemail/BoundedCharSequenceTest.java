@@ -0,0 +1,116 @@
+package com.helpezee.mail.bounceemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.helpezee.mail.bounceemail.BoundedCharSequence.BudgetExceededException;
+
+import junit.framework.TestCase;
+
+/**
+ * @author JackW
+ */
+public class BoundedCharSequenceTest extends TestCase {
+
+	/* quadratic on a run of a's without an '@', every start backtracks to it */
+	private static final Pattern QUADRATIC = Pattern.compile("a+@");
+
+	private static String run(char c, int n) {
+		char[] chars = new char[n];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	public void testMatchesLikeThePlainText() {
+		String text = "Recipient address rejected: jsmith@example.org";
+		BoundedCharSequence seq = new BoundedCharSequence(text, text.length(), 10000L, 10000L);
+		Matcher m = Pattern.compile("\\S+@\\S+").matcher(seq);
+		assertTrue(m.find());
+		assertEquals("jsmith@example.org", m.group());
+		assertTrue(seq.getSteps() > 0);
+	}
+
+	public void testLengthHidesTheRest() {
+		String text = "0123456789";
+		BoundedCharSequence seq = new BoundedCharSequence(text, 4, 100L, 1000L);
+		assertEquals(4, seq.length());
+		assertEquals("0123", seq.toString());
+		assertEquals("12", seq.subSequence(1, 3).toString());
+		try {
+			seq.charAt(4);
+			fail("read past the length");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+		assertEquals(10, new BoundedCharSequence(text, 100, 100L, 1000L).length());
+	}
+
+	public void testStepBudget() {
+		String text = run('a', 2000);
+		BoundedCharSequence seq = new BoundedCharSequence(text, text.length(), 100000L, 60000L);
+		try {
+			QUADRATIC.matcher(seq).find();
+			fail("step budget not enforced");
+		} catch (BudgetExceededException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Step budget"));
+		}
+		assertTrue(seq.getSteps() > 100000L);
+	}
+
+	public void testTimeBudget() {
+		String text = run('a', 100000);
+		BoundedCharSequence seq = new BoundedCharSequence(text, text.length(), Long.MAX_VALUE, 50L);
+		try {
+			QUADRATIC.matcher(seq).find();
+			fail("time budget not enforced");
+		} catch (BudgetExceededException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Time budget"));
+		}
+		assertTrue(seq.getElapsedMillis() < 10000L);
+	}
+
+	public void testSubSequenceSharesTheBudget() {
+		String text = "abcdef";
+		BoundedCharSequence seq = new BoundedCharSequence(text, text.length(), 3L, 1000L);
+		CharSequence sub = seq.subSequence(2, 6);
+		sub.charAt(0);
+		sub.charAt(1);
+		seq.charAt(0);
+		try {
+			sub.charAt(2);
+			fail("sub sequence got a budget of its own");
+		} catch (BudgetExceededException e) {
+			// expected
+		}
+	}
+
+	public void testInterrupt() {
+		String text = run('a', 100000);
+		BoundedCharSequence seq = new BoundedCharSequence(text, text.length(), Long.MAX_VALUE, 60000L);
+		Thread.currentThread().interrupt();
+		try {
+			QUADRATIC.matcher(seq).find();
+			fail("interrupt ignored");
+		} catch (BudgetExceededException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Interrupted"));
+		} finally {
+			Thread.interrupted(); // clear
+		}
+	}
+}
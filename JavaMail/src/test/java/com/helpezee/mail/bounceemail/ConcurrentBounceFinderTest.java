@@ -0,0 +1,138 @@
+package com.helpezee.mail.bounceemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import com.helpezee.mail.bean.MessageBean;
+import com.helpezee.mail.bean.MessageBeanUtil;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs MessageBeanUtil.mimeToBean() and the shared BounceFinder on the same
+ * messages from several threads at once, and checks that every thread gets
+ * what a single threaded run gets.
+ *
+ * @author JackW
+ */
+public class ConcurrentBounceFinderTest extends TestCase {
+
+	private static final String[] FIXTURES = { "dsn-report.eml", "text-bounce.eml", "reply.eml" };
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 50;
+
+	private final Session session = Session.getInstance(new Properties());
+	private byte[][] messages;
+
+	protected void setUp() throws IOException {
+		messages = new byte[FIXTURES.length][];
+		for (int i = 0; i < FIXTURES.length; i++) {
+			messages[i] = load(FIXTURES[i]);
+		}
+	}
+
+	public void testSameResultsAsSingleThreaded() throws Exception {
+		final String[] expected = new String[messages.length];
+		for (int i = 0; i < messages.length; i++) {
+			expected[i] = process(messages[i]);
+		}
+		assertTrue(expected[0], expected[0].indexOf("finalRcpt=jsmith@example.org") >= 0);
+		assertTrue(expected[1], expected[1].indexOf("bounceType=null") < 0);
+		assertTrue(expected[1], expected[1].indexOf("origSubject=Lunch on Friday") >= 0);
+		assertTrue(expected[2], expected[2].indexOf("bounceType=null") >= 0);
+
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < THREADS; t++) {
+				final int offset = t;
+				futures.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						start.await();
+						int done = 0;
+						for (int r = 0; r < ROUNDS; r++) {
+							// each thread walks the messages in its own order
+							int i = (offset + r) % messages.length;
+							assertEquals(FIXTURES[i], expected[i], process(messages[i]));
+							done++;
+						}
+						return Integer.valueOf(done);
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<Integer> future : futures) {
+				assertEquals(ROUNDS, future.get(60, TimeUnit.SECONDS).intValue());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/*
+	 * parse and classify a message, the fields that come out of it as one
+	 * String
+	 */
+	private String process(byte[] message) throws MessagingException, IOException {
+		MimeMessage mime = new MimeMessage(session, new ByteArrayInputStream(message));
+		MessageBean msgBean = MessageBeanUtil.mimeToBean(mime);
+		try {
+			String bounceType = BounceFinder.getInstance().parse(msgBean);
+			return "bounceType=" + bounceType + ", subject=" + msgBean.getSubject() + ", smtpMessageId="
+					+ msgBean.getSmtpMessageId() + ", finalRcpt=" + msgBean.getFinalRcpt() + ", origRcpt="
+					+ msgBean.getOrigRcpt() + ", dsnStatus=" + msgBean.getDsnStatus() + ", diagnosticCode="
+					+ msgBean.getDiagnosticCode() + ", origSubject=" + msgBean.getOrigSubject()
+					+ ", rfcMessageId=" + msgBean.getRfcMessageId() + ", bodyContentType="
+					+ msgBean.getBodyContentType() + ", body=" + msgBean.getBody();
+		} finally {
+			msgBean.release();
+		}
+	}
+
+	static byte[] load(String name) throws IOException {
+		InputStream is = ConcurrentBounceFinderTest.class.getResourceAsStream(name);
+		assertNotNull("Missing test message " + name, is);
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = is.read(buf)) > 0) {
+				baos.write(buf, 0, n);
+			}
+			return baos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+}
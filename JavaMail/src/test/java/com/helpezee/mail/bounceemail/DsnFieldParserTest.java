@@ -0,0 +1,105 @@
+package com.helpezee.mail.bounceemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+
+import com.helpezee.mail.bounceemail.DsnFieldParser.Recipient;
+
+import junit.framework.TestCase;
+
+/**
+ * @author JackW
+ */
+public class DsnFieldParserTest extends TestCase {
+
+	private static List<Recipient> parse(String dsn) {
+		return DsnFieldParser.parse(dsn.getBytes(DsnFieldParser.UTF_8));
+	}
+
+	public void testPerMessageFieldsAreSkipped() {
+		List<Recipient> recipients = parse("Reporting-MTA: dns; mx.example.com\r\n"
+				+ "Arrival-Date: Mon, 4 May 2009 10:12:01 -0400\r\n"
+				+ "\r\n"
+				+ "Final-Recipient: rfc822; jsmith@example.org\r\n"
+				+ "Action: failed\r\n"
+				+ "Status: 5.1.1 (user unknown)\r\n");
+		assertEquals(1, recipients.size());
+		Recipient recipient = recipients.get(0);
+		assertEquals("jsmith@example.org", recipient.getFinalRecipient());
+		assertNull(recipient.getOriginalRecipient());
+		assertEquals("failed", recipient.getAction());
+		assertEquals("5.1.1", recipient.getStatus());
+		assertEquals("5.1.1 (user unknown)", recipient.getValue(DsnFieldParser.STATUS));
+	}
+
+	public void testFoldedDiagnosticCode() {
+		List<Recipient> recipients = parse("Final-Recipient: rfc822; jsmith@example.org\r\n"
+				+ "Diagnostic-Code: smtp; 550 5.1.1 <jsmith@example.org>:\r\n"
+				+ "    Recipient address rejected: User unknown\r\n"
+				+ "Status: 5.1.1\r\n");
+		assertEquals(1, recipients.size());
+		assertEquals("smtp; 550 5.1.1 <jsmith@example.org>:    Recipient address rejected: User unknown",
+				recipients.get(0).getDiagnosticCode());
+		assertEquals("5.1.1", recipients.get(0).getStatus());
+	}
+
+	public void testNamesIgnoreCaseAndAddressIsTokenWithAt() {
+		List<Recipient> recipients = parse("original-recipient: rfc822;mary@example.net\n"
+				+ "FINAL-RECIPIENT: RFC822; <mary@mail.example.net>\n"
+				+ "action: delayed\n");
+		assertEquals(1, recipients.size());
+		assertEquals("mary@example.net", recipients.get(0).getOriginalRecipient());
+		assertEquals("<mary@mail.example.net>", recipients.get(0).getFinalRecipient());
+		assertEquals("delayed", recipients.get(0).getAction());
+	}
+
+	public void testRepeatedFieldStartsNewBlock() {
+		List<Recipient> recipients = parse("Final-Recipient: rfc822; a@example.org\n"
+				+ "Status: 5.1.1\n"
+				+ "Final-Recipient: rfc822; b@example.org\n"
+				+ "Status: 4.2.2\n");
+		assertEquals(2, recipients.size());
+		assertEquals("a@example.org", recipients.get(0).getFinalRecipient());
+		assertEquals("5.1.1", recipients.get(0).getStatus());
+		assertEquals("b@example.org", recipients.get(1).getFinalRecipient());
+		assertEquals("4.2.2", recipients.get(1).getStatus());
+	}
+
+	public void testOffsetsPointIntoTheText() {
+		String dsn = "Reporting-MTA: dns; mx.example.com\n\nStatus:   5.0.0  \n";
+		byte[] bytes = dsn.getBytes(DsnFieldParser.UTF_8);
+		List<Recipient> recipients = DsnFieldParser.parse(bytes, 0, bytes.length);
+		assertEquals(1, recipients.size());
+		Recipient recipient = recipients.get(0);
+		assertTrue(recipient.has(DsnFieldParser.STATUS));
+		assertFalse(recipient.has(DsnFieldParser.ACTION));
+		assertEquals(-1, recipient.getStart(DsnFieldParser.ACTION));
+		assertEquals("5.0.0", dsn.substring(recipient.getStart(DsnFieldParser.STATUS),
+				recipient.getEnd(DsnFieldParser.STATUS)));
+	}
+
+	public void testAddressWithoutAt() {
+		List<Recipient> recipients = parse("Final-Recipient: rfc822; unknown\n");
+		assertEquals(1, recipients.size());
+		assertNull(recipients.get(0).getFinalRecipient());
+	}
+
+	public void testNoRecipients() {
+		assertTrue(parse("").isEmpty());
+		assertTrue(parse("Reporting-MTA: dns; mx.example.com\r\n\r\n").isEmpty());
+	}
+}
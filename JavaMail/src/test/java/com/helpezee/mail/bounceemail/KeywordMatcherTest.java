@@ -0,0 +1,102 @@
+package com.helpezee.mail.bounceemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * @author JackW
+ */
+public class KeywordMatcherTest extends TestCase {
+
+	public void testFindsKeywordsIgnoringCase() {
+		KeywordMatcher matcher = new KeywordMatcher("user unknown", "mailbox", "quota");
+		assertEquals(1L | 2L, matcher.match("550 USER Unknown, MAILBOX disabled"));
+		assertEquals(4L, matcher.match("over Quota"));
+		assertEquals(0L, matcher.match("nothing to see here"));
+		assertEquals(0L, matcher.match(""));
+	}
+
+	public void testOverlappingKeywords() {
+		// "she" ends inside "ushers", "he" and "hers" through failure links
+		KeywordMatcher matcher = new KeywordMatcher("he", "she", "his", "hers");
+		assertEquals(1L | 2L | 8L, matcher.match("ushers"));
+		assertEquals(4L, matcher.match("this"));
+	}
+
+	public void testRange() {
+		KeywordMatcher matcher = new KeywordMatcher("abc", "xyz");
+		String text = "abc---xyz";
+		assertEquals(1L, matcher.match(text, 0, 3));
+		assertEquals(2L, matcher.match(text, 3, text.length()));
+		assertEquals(0L, matcher.match(text, 1, 8));
+	}
+
+	public void testNonAsciiResetsTheAutomaton() {
+		KeywordMatcher matcher = new KeywordMatcher("mailbox");
+		assertEquals(0L, matcher.match("mailébox"));
+		assertEquals(1L, matcher.match("émailboxé"));
+	}
+
+	public void testSameAnswerAsCaseInsensitiveRegex() {
+		String[] keywords = { "undeliverable", "not found", "no such", "rejected", "unknown" };
+		KeywordMatcher matcher = new KeywordMatcher(keywords);
+		String[] texts = { "Mail Delivery Subsystem: Undeliverable", "550 No Such user", "ok",
+				"Recipient address REJECTED: User unknown", "not-found" };
+		for (String text : texts) {
+			long expected = 0L;
+			for (int k = 0; k < keywords.length; k++) {
+				if (Pattern.compile(Pattern.quote(keywords[k]), Pattern.CASE_INSENSITIVE).matcher(text).find()) {
+					expected |= 1L << k;
+				}
+			}
+			assertEquals(text, expected, matcher.match(text));
+		}
+	}
+
+	public void testSixtyFourKeywords() {
+		String[] keywords = new String[64];
+		for (int k = 0; k < keywords.length; k++) {
+			keywords[k] = "k" + k + ";";
+		}
+		KeywordMatcher matcher = new KeywordMatcher(keywords);
+		assertEquals(1L << 63, matcher.match("xx k63; yy"));
+		assertEquals(1L | 1L << 63, matcher.match("k0;k63;"));
+	}
+
+	public void testInvalidKeywords() {
+		try {
+			new KeywordMatcher(new String[65]);
+			fail("more than 64 keywords accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new KeywordMatcher("ok", "");
+			fail("empty keyword accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new KeywordMatcher("café");
+			fail("non ASCII keyword accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
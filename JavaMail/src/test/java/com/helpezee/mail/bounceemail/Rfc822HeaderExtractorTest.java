@@ -0,0 +1,102 @@
+package com.helpezee.mail.bounceemail;
+
+/*
+ * Copyright (C) 2009 JackW
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.helpezee.mail.bean.MsgHeader;
+
+import junit.framework.TestCase;
+
+/**
+ * @author JackW
+ */
+public class Rfc822HeaderExtractorTest extends TestCase {
+
+	private static Rfc822HeaderExtractor extract(String text) {
+		return Rfc822HeaderExtractor.extract(text.getBytes(DsnFieldParser.UTF_8));
+	}
+
+	public void testAllHeaders() {
+		Rfc822HeaderExtractor headers = extract("From: sender@example.com\r\n"
+				+ "to: jsmith@example.org\r\n"
+				+ "SUBJECT: Quarterly\r\n"
+				+ " figures\r\n"
+				+ "Message-ID: <orig1@example.com>\r\n"
+				+ "\r\n"
+				+ "Hello\r\n");
+		assertTrue(headers.hasAll());
+		assertEquals("jsmith@example.org", headers.getTo());
+		assertEquals("Quarterly figures", headers.getSubject());
+		assertEquals("<orig1@example.com>", headers.getMessageId());
+	}
+
+	public void testFirstOccurrenceWins() {
+		Rfc822HeaderExtractor headers = extract("To: first@example.org\nTo: second@example.org\n");
+		assertEquals("first@example.org", headers.getTo());
+		assertFalse(headers.has(Rfc822HeaderExtractor.SUBJECT));
+		assertNull(headers.getSubject());
+		assertFalse(headers.hasAll());
+	}
+
+	public void testOffsets() {
+		String text = "Subject:  Lunch  \nTo: a@example.org\n";
+		Rfc822HeaderExtractor headers = extract(text);
+		int start = headers.getStart(Rfc822HeaderExtractor.SUBJECT);
+		int end = headers.getEnd(Rfc822HeaderExtractor.SUBJECT);
+		assertEquals("Lunch", text.substring(start, end));
+		assertEquals(-1, headers.getStart(Rfc822HeaderExtractor.MESSAGE_ID));
+	}
+
+	public void testSubRange() {
+		String text = "garbage\nTo: a@example.org\nSubject: inside\nSubject: outside\n";
+		byte[] bytes = text.getBytes(DsnFieldParser.UTF_8);
+		int off = text.indexOf("To:");
+		int len = text.indexOf("Subject: outside") - off;
+		Rfc822HeaderExtractor headers = Rfc822HeaderExtractor.extract(bytes, off, len);
+		assertEquals("a@example.org", headers.getTo());
+		assertEquals("inside", headers.getSubject());
+	}
+
+	public void testStopsAfterHeaderLines() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i <= Rfc822HeaderExtractor.MAX_HEADER_LINES; i++) {
+			sb.append("line ").append(i).append('\n');
+		}
+		sb.append("To: late@example.org\n");
+		assertFalse(extract(sb.toString()).has(Rfc822HeaderExtractor.TO));
+	}
+
+	public void testHeaderList() {
+		List<MsgHeader> list = new ArrayList<MsgHeader>();
+		list.add(header("From", "sender@example.com"));
+		list.add(header("SUBJECT", "Quarterly\r\n figures"));
+		list.add(header("To", " jsmith@example.org "));
+		Rfc822HeaderExtractor headers = Rfc822HeaderExtractor.extract(list);
+		assertEquals("jsmith@example.org", headers.getTo());
+		assertEquals("Quarterly figures", headers.getSubject());
+		assertNull(headers.getMessageId());
+		assertEquals(-1, headers.getStart(Rfc822HeaderExtractor.TO));
+	}
+
+	private static MsgHeader header(String name, String value) {
+		MsgHeader header = new MsgHeader();
+		header.setName(name);
+		header.setValue(value);
+		return header;
+	}
+}